@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.uima.cas.impl; // needed because of methods visibility
+
+import org.apache.uima.cas.CAS;
+
+/**
+ * Measures the memory retained by a CAS. Requires to be in this package
+ * because of package visibility.
+ * 
+ * @author renaud@apache.org
+ */
+public class CasHeapSize {
+
+    /**
+     * @return the capacity (in bytes) of the main and auxiliary heaps of this
+     *         CAS. They keep (most of) their capacity after a reset, so a CAS
+     *         that processed a very large document stays large. Strings are
+     *         not counted, since they are released on reset.
+     */
+    public static long getHeapCapacity(CAS cas) {
+        CASImpl base = ((CASImpl) cas).getBaseCAS();
+        return 4l * base.getHeap().heap.length //
+                + base.getByteHeap().heap.length //
+                + 2l * base.getShortHeap().heap.length //
+                + 8l * base.getLongHeap().heap.length;
+    }
+}
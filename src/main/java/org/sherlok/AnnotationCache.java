@@ -0,0 +1,411 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.sherlok.FileBased.RUNTIME_DIR_PATH;
+import static org.sherlok.utils.Create.list;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.sherlok.mappings.PipelineDef;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches annotation results (serialized), so that annotating the same text
+ * again does not run the pipeline. Two tiers: an in-memory LRU bounded by
+ * bytes, and optionally a persistent on-disk store (under
+ * {@link #DISK_CACHE_PATH}) that survives restarts, also bounded by bytes
+ * (least recently used files are deleted).<br>
+ * Keys are made of the pipeline id, a hash of the {@link PipelineDef} and of
+ * what it loaded (engines, dependencies), the output variant (e.g. JSON or
+ * binary) and a hash of the text.
+ *
+ * @author renaud@apache.org
+ */
+public class AnnotationCache {
+    private static final Logger LOG = getLogger(AnnotationCache.class);
+
+    public static final String DISK_CACHE_PATH = RUNTIME_DIR_PATH
+            + "annotation_cache/";
+
+    /** Used by {@link PipelineLoader}s, see {@link #setDefaults} */
+    private static long defaultMaxBytes = 64 * 1024 * 1024;
+    private static boolean defaultPersistent = false;
+    private static long defaultMaxDiskBytes = 1024 * 1024 * 1024;
+
+    /** Larger results are not cached */
+    private final long maxEntryBytes;
+    private final long maxBytes;
+    private final File diskDir;
+    private final long maxDiskBytes;
+    /** Size of the on-disk entries, synchronized on {@link #diskDir} */
+    private long diskBytes = 0;
+
+    /** in-memory LRU, in access order */
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(
+            16, 0.75f, true);
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            the maximum size of the in-memory cache. 0 disables caching.
+     * @param diskDir
+     *            where to persist entries, or null to only cache in memory
+     */
+    public AnnotationCache(long maxBytes, File diskDir) {
+        this(maxBytes, diskDir, defaultMaxDiskBytes);
+    }
+
+    /**
+     * @param maxDiskBytes
+     *            the maximum size of the on-disk entries
+     */
+    public AnnotationCache(long maxBytes, File diskDir, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 10;
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDir != null && diskDir.exists()) { // from before a restart
+            diskBytes = FileUtils.sizeOfDirectory(diskDir);
+        }
+    }
+
+    /** Creates a cache with the defaults set through the command line */
+    static AnnotationCache createDefault() {
+        return new AnnotationCache(defaultMaxBytes,
+                defaultPersistent ? new File(DISK_CACHE_PATH) : null,
+                defaultMaxDiskBytes);
+    }
+
+    /**
+     * @param maxMegabytes
+     *            size of the in-memory annotation cache (0 disables it)
+     * @param persistent
+     *            whether to also store annotations on disk
+     * @param maxDiskMegabytes
+     *            size of the on-disk annotation cache
+     */
+    public static void setDefaults(int maxMegabytes, boolean persistent,
+            int maxDiskMegabytes) {
+        if (maxMegabytes < 0 || maxDiskMegabytes < 0) {
+            throw new IllegalArgumentException(
+                    "annotation cache sizes must be positive, but were "
+                            + maxMegabytes + ", " + maxDiskMegabytes);
+        }
+        defaultMaxBytes = maxMegabytes * 1024l * 1024l;
+        defaultPersistent = persistent;
+        defaultMaxDiskBytes = maxDiskMegabytes * 1024l * 1024l;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param loaded
+     *            identifies what the pipeline loaded besides its definition,
+     *            e.g. the fingerprints of its engines (class, jar, resolved
+     *            parameters) and the hash of its dependencies (see
+     *            {@link DependencyLockfile#hash})
+     * @return the prefix of all keys for this pipeline (its id and a hash of
+     *         its definition and of what it loaded, so that a modified
+     *         pipeline, or bundle, gets new keys)
+     */
+    static String keyPrefix(PipelineDef pipelineDef, List<String> loaded) {
+        try {
+            return pipelineDef.getId()
+                    + "/"
+                    + Hashing
+                            .sha1()
+                            .hashString(
+                                    FileBased.writeAsString(pipelineDef) + " "
+                                            + loaded, UTF_8).toString();
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e); // should not happen
+        }
+    }
+
+    /**
+     * @param keyPrefix
+     *            see {@link #keyPrefix(PipelineDef)}
+     * @param variant
+     *            of the output, e.g. 'json', 'bin'
+     */
+    static String key(String keyPrefix, String variant, String text) {
+        return keyPrefix + "/" + variant + "_"
+                + Hashing.sha1().hashString(text, UTF_8).toString();
+    }
+
+    /** @return the cached result, or null if not found */
+    public byte[] get(String key) {
+        byte[] value;
+        synchronized (this) {
+            value = entries.get(key);
+        }
+        if (value == null && diskDir != null) {
+            value = readFromDisk(key);
+            if (value != null) {
+                putInMemory(key, value);
+            }
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(String key, byte[] value) {
+        if (value.length > maxEntryBytes) {
+            return;
+        }
+        putInMemory(key, value);
+        if (diskDir != null) {
+            writeToDisk(key, value);
+        }
+    }
+
+    private synchronized void putInMemory(String key, byte[] value) {
+        byte[] previous = entries.put(key, value);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += value.length;
+        // evict least recently used entries
+        Iterator<byte[]> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private byte[] readFromDisk(String key) {
+        File f = new File(diskDir, key);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            byte[] value = Files.readAllBytes(f.toPath());
+            f.setLastModified(currentTimeMillis()); // recently used
+            return value;
+        } catch (NoSuchFileException e) { // evicted meanwhile
+            return null;
+        } catch (IOException e) {
+            LOG.warn("could not read cached annotations '{}': {}", key,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] value) {
+        File f = new File(diskDir, key);
+        try {
+            f.getParentFile().mkdirs();
+            // write atomically, concurrent readers never see partial entries
+            File tmp = File.createTempFile(f.getName(), ".tmp",
+                    f.getParentFile());
+            Files.write(tmp.toPath(), value);
+            long previous = f.length(); // 0 if none
+            Files.move(tmp.toPath(), f.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+            synchronized (diskDir) {
+                diskBytes += value.length - previous;
+                if (diskBytes > maxDiskBytes) {
+                    evictFromDisk();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("could not write cached annotations '{}': {}", key,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the least recently used files, down to 3/4 of the budget (so
+     * that it does not run on every write). Must hold the lock.
+     */
+    private void evictFromDisk() {
+        List<File> files = list(FileUtils.listFiles(diskDir, null, true));
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        long evicted = 0;
+        diskBytes = 0;
+        for (File f : files) {
+            diskBytes += f.length(); // recount, e.g. after concurrent writes
+        }
+        for (File f : files) {
+            if (diskBytes <= maxDiskBytes * 3 / 4) {
+                break;
+            }
+            if (f.getName().endsWith(".tmp")) {
+                continue; // being written
+            }
+            long length = f.length();
+            if (f.delete()) {
+                diskBytes -= length;
+                evicted++;
+            }
+        }
+        LOG.debug("evicted {} cached annotations from disk, {} bytes left",
+                evicted, diskBytes);
+    }
+
+    /** Removes all cached results of this pipeline */
+    public void invalidate(String pipelineId) {
+        synchronized (this) {
+            Iterator<Entry<String, byte[]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry<String, byte[]> e = it.next();
+                if (e.getKey().startsWith(pipelineId + "/")) {
+                    bytes -= e.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+        if (diskDir != null) {
+            synchronized (diskDir) {
+                File dir = new File(diskDir, pipelineId);
+                if (dir.exists()) {
+                    diskBytes -= FileUtils.sizeOfDirectory(dir);
+                    FileUtils.deleteQuietly(dir);
+                }
+            }
+        }
+    }
+
+    /** Removes all cached results */
+    public void invalidateAll() {
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+        if (diskDir != null) {
+            synchronized (diskDir) {
+                FileUtils.deleteQuietly(diskDir);
+                diskBytes = 0;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the maximum size of a cached result, in bytes */
+    long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /** @return the current size of the in-memory cache, in bytes */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** @return the current size of the on-disk cache, in bytes */
+    public long getDiskBytes() {
+        if (diskDir == null) {
+            return 0;
+        }
+        synchronized (diskDir) {
+            return diskBytes;
+        }
+    }
+
+    /**
+     * Writes through to another {@link Writer}, and keeps a copy of what was
+     * written (unless it grows too large to be cached).
+     */
+    static class CopyingWriter extends FilterWriter {
+        private final StringBuilder copy = new StringBuilder();
+        private final long maxChars;
+        private boolean tooLarge = false;
+
+        CopyingWriter(Writer out, long maxChars) {
+            super(out);
+            this.maxChars = maxChars;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            if (checkSize(1)) {
+                copy.append((char) c);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if (checkSize(len)) {
+                copy.append(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            if (checkSize(len)) {
+                copy.append(str, off, len);
+            }
+        }
+
+        /** @return whether these chars can still be copied */
+        private boolean checkSize(int len) {
+            if (!tooLarge && copy.length() + len > maxChars) {
+                tooLarge = true;
+                copy.setLength(0);
+                copy.trimToSize();
+            }
+            return !tooLarge;
+        }
+
+        /** @return what was written, or null if it was too large */
+        byte[] getCopy() {
+            return tooLarge ? null : copy.toString().getBytes(UTF_8);
+        }
+    }
+}
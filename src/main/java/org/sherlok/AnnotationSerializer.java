@@ -0,0 +1,444 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.sherlok.UimaPipeline.matchesAny;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.ArrayFS;
+import org.apache.uima.cas.BooleanArrayFS;
+import org.apache.uima.cas.ByteArrayFS;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.DoubleArrayFS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.FloatArrayFS;
+import org.apache.uima.cas.IntArrayFS;
+import org.apache.uima.cas.LongArrayFS;
+import org.apache.uima.cas.ShortArrayFS;
+import org.apache.uima.cas.SofaFS;
+import org.apache.uima.cas.StringArrayFS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.sherlok.mappings.SherlokException;
+import org.sherlok.mappings.SherlokResult;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the annotations of a {@link CAS} as JSON, in the format read by
+ * {@link SherlokResult}. Replaces UIMA's JSON serializer: the writers of all
+ * types are computed once (per pipeline), only the annotation indexes of the
+ * output types are visited, and each annotation only gets its begin, end and
+ * features (no type context, no 'sofa' reference). Referenced feature
+ * structures are written inline, one level deep. Thread-safe.
+ *
+ * @author renaud@apache.org
+ */
+public class AnnotationSerializer {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    /** How to write the value of a feature, depending on its range */
+    private enum Kind {
+        STRING, BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, //
+        STRING_ARRAY, BOOLEAN_ARRAY, BYTE_ARRAY, SHORT_ARRAY, INT_ARRAY, //
+        LONG_ARRAY, FLOAT_ARRAY, DOUBLE_ARRAY, FS_ARRAY, FS
+    }
+
+    private static final Map<String, Kind> KINDS = map();
+    static {
+        KINDS.put(CAS.TYPE_NAME_BOOLEAN, Kind.BOOLEAN);
+        KINDS.put(CAS.TYPE_NAME_BYTE, Kind.BYTE);
+        KINDS.put(CAS.TYPE_NAME_SHORT, Kind.SHORT);
+        KINDS.put(CAS.TYPE_NAME_INTEGER, Kind.INT);
+        KINDS.put(CAS.TYPE_NAME_LONG, Kind.LONG);
+        KINDS.put(CAS.TYPE_NAME_FLOAT, Kind.FLOAT);
+        KINDS.put(CAS.TYPE_NAME_DOUBLE, Kind.DOUBLE);
+        KINDS.put(CAS.TYPE_NAME_STRING_ARRAY, Kind.STRING_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_BOOLEAN_ARRAY, Kind.BOOLEAN_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_BYTE_ARRAY, Kind.BYTE_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_SHORT_ARRAY, Kind.SHORT_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_INTEGER_ARRAY, Kind.INT_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_LONG_ARRAY, Kind.LONG_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_FLOAT_ARRAY, Kind.FLOAT_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_DOUBLE_ARRAY, Kind.DOUBLE_ARRAY);
+        KINDS.put(CAS.TYPE_NAME_FS_ARRAY, Kind.FS_ARRAY);
+    }
+
+    /** Writers for all types (also needed for referenced structures) */
+    private final Map<Type, TypeWriter> writers;
+    /** Annotation types to output, in type system order */
+    private final List<Type> outputTypes;
+    private final boolean includeText;
+
+    /**
+     * @param ts
+     *            the type system of the CASes to serialize
+     * @param includes
+     *            the annotation types to output (full names, or prefixes
+     *            ending with '.*'). If empty, all types are output, except
+     *            the filtered ones.
+     * @param filters
+     *            the annotation types not to output, see includes
+     * @param includeText
+     *            whether to echo the annotated text (as
+     *            {@link SherlokResult#getText()})
+     */
+    public AnnotationSerializer(TypeSystem ts, List<String> includes,
+            List<String> filters, boolean includeText) {
+        this.includeText = includeText;
+        this.writers = map();
+        this.outputTypes = list();
+        Type annotationType = ts.getType(CAS.TYPE_NAME_ANNOTATION);
+        Type stringType = ts.getType(CAS.TYPE_NAME_STRING);
+
+        // short names, unless ambiguous
+        Map<String, Integer> shortNames = map();
+        Iterator<Type> it = ts.getTypeIterator();
+        while (it.hasNext()) {
+            String shortName = it.next().getShortName();
+            Integer count = shortNames.get(shortName);
+            shortNames.put(shortName, count == null ? 1 : count + 1);
+        }
+
+        it = ts.getTypeIterator();
+        while (it.hasNext()) {
+            Type type = it.next();
+            String name = shortNames.get(type.getShortName()) == 1 ? type
+                    .getShortName() : type.getName();
+            writers.put(type, new TypeWriter(ts, type, name, ts.subsumes(
+                    annotationType, type), stringType));
+
+            boolean include = !includes.isEmpty() ? matchesAny(
+                    type.getName(), includes) : !matchesAny(type.getName(),
+                    filters);
+            if (include && ts.subsumes(annotationType, type)) {
+                outputTypes.add(type);
+            }
+        }
+    }
+
+    /** see {@link #project(List)} */
+    private AnnotationSerializer(AnnotationSerializer parent,
+            List<Type> outputTypes) {
+        this.writers = parent.writers;
+        this.includeText = parent.includeText;
+        this.outputTypes = outputTypes;
+    }
+
+    /**
+     * @param types
+     *            the annotation types to keep: short or full names, or
+     *            prefixes ending with '.*'
+     * @return a serializer that only outputs these types (among the types
+     *         output by this serializer)
+     * @throws SherlokException
+     *             if one of these types is not output by this serializer
+     */
+    public AnnotationSerializer project(List<String> types)
+            throws SherlokException {
+        List<Type> projected = list();
+        for (Type type : outputTypes) {
+            for (String t : types) {
+                if (matches(type, t)) {
+                    projected.add(type);
+                    break;
+                }
+            }
+        }
+        for (String t : types) {
+            boolean found = false;
+            for (Type type : projected) {
+                found |= matches(type, t);
+            }
+            if (!found) {
+                throw new SherlokException("unknown annotation type '" + t
+                        + "' in 'types' parameter", t)
+                        .setDetails("this pipeline does not output it");
+            }
+        }
+        return new AnnotationSerializer(this, projected);
+    }
+
+    private static boolean matches(Type type, String pattern) {
+        return pattern.equals(type.getShortName())
+                || matchesAny(type.getName(), list(pattern));
+    }
+
+    /**
+     * @param out
+     *            gets flushed, but not closed
+     */
+    public void serialize(CAS cas, Writer out, boolean prettyPrint)
+            throws IOException {
+        JsonGenerator gen = JSON_FACTORY.createGenerator(out);
+        if (prettyPrint) {
+            gen.useDefaultPrettyPrinter();
+        }
+        gen.writeStartObject();
+
+        gen.writeObjectFieldStart("_views");
+        Iterator<CAS> views = cas.getViewIterator();
+        while (views.hasNext()) {
+            CAS view = views.next();
+            gen.writeObjectFieldStart(view.getViewName());
+            for (Type type : outputTypes) {
+                writeAnnotations(view, type, gen);
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+
+        if (includeText) { // keyed by sofa nr, like UIMA's serializer
+            gen.writeObjectFieldStart("_referenced_fss");
+            views = cas.getViewIterator();
+            while (views.hasNext()) {
+                CAS view = views.next();
+                SofaFS sofa = view.getSofa();
+                if (sofa != null) {
+                    gen.writeObjectFieldStart(Integer.toString(sofa
+                            .getSofaRef()));
+                    gen.writeStringField("_type", "Sofa");
+                    gen.writeNumberField("sofaNum", sofa.getSofaRef());
+                    gen.writeStringField("sofaID", sofa.getSofaID());
+                    if (sofa.getSofaMime() != null) {
+                        gen.writeStringField("mimeType", sofa.getSofaMime());
+                    }
+                    if (view.getDocumentText() != null) {
+                        gen.writeStringField("sofaString",
+                                view.getDocumentText());
+                    }
+                    gen.writeEndObject();
+                }
+            }
+            gen.writeEndObject();
+        }
+
+        gen.writeEndObject();
+        gen.flush();
+    }
+
+    /** Writes all annotations of exactly this type (if any) */
+    private void writeAnnotations(CAS view, Type type, JsonGenerator gen)
+            throws IOException {
+        TypeWriter writer = writers.get(type);
+        boolean empty = true;
+        FSIterator<AnnotationFS> it = view.getAnnotationIndex(type).iterator();
+        while (it.hasNext()) {
+            AnnotationFS a = it.next();
+            if (a.getType() != type) {
+                continue; // subtypes are written under their own name
+            }
+            if (empty) {
+                gen.writeArrayFieldStart(writer.name);
+                empty = false;
+            }
+            writer.write(a, gen, true);
+        }
+        if (!empty) {
+            gen.writeEndArray();
+        }
+    }
+
+    /** Writes the feature structures of one type */
+    private class TypeWriter {
+        private final String name;
+        private final boolean annotation;
+        /** all features except 'sofa', 'begin' and 'end' */
+        private final Feature[] features;
+        private final Kind[] kinds;
+
+        private TypeWriter(TypeSystem ts, Type type, String name,
+                boolean annotation, Type stringType) {
+            this.name = name;
+            this.annotation = annotation;
+            List<Feature> fs = list();
+            for (Feature f : type.getFeatures()) {
+                String fName = f.getShortName();
+                if (!fName.equals(CAS.FEATURE_BASE_NAME_SOFA)
+                        && !fName.equals(CAS.FEATURE_BASE_NAME_BEGIN)
+                        && !fName.equals(CAS.FEATURE_BASE_NAME_END)) {
+                    fs.add(f);
+                }
+            }
+            features = fs.toArray(new Feature[fs.size()]);
+            kinds = new Kind[features.length];
+            for (int i = 0; i < features.length; i++) {
+                Type range = features[i].getRange();
+                if (ts.subsumes(stringType, range)) {
+                    kinds[i] = Kind.STRING;
+                } else if (KINDS.containsKey(range.getName())) {
+                    kinds[i] = KINDS.get(range.getName());
+                } else {
+                    kinds[i] = Kind.FS;
+                }
+            }
+        }
+
+        /**
+         * @param topLevel
+         *            if false, the type name is written, and referenced
+         *            structures are not
+         */
+        private void write(FeatureStructure fs, JsonGenerator gen,
+                boolean topLevel) throws IOException {
+            gen.writeStartObject();
+            if (!topLevel) {
+                gen.writeStringField("_type", name);
+            }
+            if (annotation) {
+                AnnotationFS a = (AnnotationFS) fs;
+                gen.writeNumberField("begin", a.getBegin());
+                gen.writeNumberField("end", a.getEnd());
+            }
+            for (int i = 0; i < features.length; i++) {
+                writeFeature(fs, features[i], kinds[i], gen, topLevel);
+            }
+            gen.writeEndObject();
+        }
+    }
+
+    private void writeFeature(FeatureStructure fs, Feature f, Kind kind,
+            JsonGenerator gen, boolean withReferences) throws IOException {
+        switch (kind) {
+        case STRING:
+            String s = fs.getStringValue(f);
+            if (s != null) {
+                gen.writeStringField(f.getShortName(), s);
+            }
+            return;
+        case BOOLEAN:
+            gen.writeBooleanField(f.getShortName(), fs.getBooleanValue(f));
+            return;
+        case BYTE:
+            gen.writeNumberField(f.getShortName(), fs.getByteValue(f));
+            return;
+        case SHORT:
+            gen.writeNumberField(f.getShortName(), fs.getShortValue(f));
+            return;
+        case INT:
+            gen.writeNumberField(f.getShortName(), fs.getIntValue(f));
+            return;
+        case LONG:
+            gen.writeNumberField(f.getShortName(), fs.getLongValue(f));
+            return;
+        case FLOAT:
+            gen.writeNumberField(f.getShortName(), fs.getFloatValue(f));
+            return;
+        case DOUBLE:
+            gen.writeNumberField(f.getShortName(), fs.getDoubleValue(f));
+            return;
+        default: // arrays and references
+        }
+
+        FeatureStructure value = fs.getFeatureValue(f);
+        if (value == null
+                || (!withReferences && (kind == Kind.FS || kind == Kind.FS_ARRAY))) {
+            return;
+        }
+        gen.writeFieldName(f.getShortName());
+        switch (kind) {
+        case STRING_ARRAY:
+            gen.writeStartArray();
+            for (String v : ((StringArrayFS) value).toArray()) {
+                gen.writeString(v);
+            }
+            gen.writeEndArray();
+            break;
+        case BOOLEAN_ARRAY:
+            gen.writeStartArray();
+            for (boolean v : ((BooleanArrayFS) value).toArray()) {
+                gen.writeBoolean(v);
+            }
+            gen.writeEndArray();
+            break;
+        case BYTE_ARRAY:
+            gen.writeStartArray();
+            for (byte v : ((ByteArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case SHORT_ARRAY:
+            gen.writeStartArray();
+            for (short v : ((ShortArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case INT_ARRAY:
+            gen.writeStartArray();
+            for (int v : ((IntArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case LONG_ARRAY:
+            gen.writeStartArray();
+            for (long v : ((LongArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case FLOAT_ARRAY:
+            gen.writeStartArray();
+            for (float v : ((FloatArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case DOUBLE_ARRAY:
+            gen.writeStartArray();
+            for (double v : ((DoubleArrayFS) value).toArray()) {
+                gen.writeNumber(v);
+            }
+            gen.writeEndArray();
+            break;
+        case FS_ARRAY:
+            gen.writeStartArray();
+            ArrayFS array = (ArrayFS) value;
+            for (int i = 0; i < array.size(); i++) {
+                writeReference(array.get(i), gen);
+            }
+            gen.writeEndArray();
+            break;
+        default: // FS
+            writeReference(value, gen);
+        }
+    }
+
+    /** Writes this referenced structure inline, without its own references */
+    private void writeReference(FeatureStructure fs, JsonGenerator gen)
+            throws IOException {
+        if (fs == null) {
+            gen.writeNull();
+        } else {
+            writers.get(fs.getType()).write(fs, gen, false);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.internal.util.UIMAClassLoader;
+import org.apache.uima.resource.ResourceManager;
+import org.apache.uima.resource.impl.ResourceManager_impl;
+import org.sherlok.mappings.BundleDef;
+import org.slf4j.Logger;
+
+/**
+ * Process-wide registry of the classloaders that pipelines load their bundles'
+ * jars into, instead of adding them to the system classpath. Pipelines with
+ * the same bundles (see {@link DependencyLockfile#hash(Set)}) share one
+ * classloader. Classloaders are reference-counted (see
+ * {@link #acquire(Set, List)} and {@link #release(ClassLoader)}), and closed
+ * once no pipeline uses them anymore, so that their classes (and the memory
+ * they hold) can be garbage-collected.
+ *
+ * @author renaud@apache.org
+ */
+public class BundleClassLoaders {
+    private static final Logger LOG = getLogger(BundleClassLoaders.class);
+
+    /** The classloader of Sherlok, parent of all bundle classloaders */
+    static final ClassLoader BASE = BundleClassLoaders.class.getClassLoader();
+
+    /** k: hash of the bundles */
+    private static final Map<String, BundleClassLoader> LOADERS = map();
+
+    /** Loads the jars of a set of bundles (that are not on the classpath) */
+    static class BundleClassLoader extends UIMAClassLoader {
+        private final String key;
+        private int users = 0;
+
+        private BundleClassLoader(String key, URL[] urls) {
+            super(urls, BASE);
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return "BundleClassLoader[" + key + "]";
+        }
+    }
+
+    /**
+     * @param bundleDefs
+     *            the bundles of a pipeline
+     * @param jars
+     *            the jars these bundles resolve to
+     * @return a classloader for these jars, shared by all pipelines with the
+     *         same bundles. Must be {@link #release(ClassLoader)}d. Returns
+     *         {@link #BASE} if all jars are already on the classpath.
+     */
+    static synchronized ClassLoader acquire(Set<BundleDef> bundleDefs,
+            List<File> jars) throws IOException {
+        String key = DependencyLockfile.hash(bundleDefs);
+        BundleClassLoader loader = LOADERS.get(key);
+        if (loader == null) {
+            JarIndex jarIndex = JarIndex.get();
+            List<URL> urls = list();
+            for (File jar : jars) {
+                if (!jarIndex.isOnClasspath(jar)) {
+                    urls.add(jar.toURI().toURL());
+                    LOG.trace("* added to classloader: '{}'",
+                            jar.getAbsolutePath());
+                } else {
+                    LOG.trace("* already on classpath: '{}'", jar.getName());
+                }
+            }
+            jarIndex.save();
+            if (urls.isEmpty()) {
+                return BASE;
+            }
+            loader = new BundleClassLoader(key,
+                    urls.toArray(new URL[urls.size()]));
+            LOADERS.put(key, loader);
+            LOG.debug("created classloader {} with {} jar(s)", key,
+                    urls.size());
+        }
+        loader.users++;
+        return loader;
+    }
+
+    /** Closes this classloader if no pipeline uses it anymore */
+    static synchronized void release(ClassLoader classLoader) {
+        if (!(classLoader instanceof BundleClassLoader)) {
+            return; // BASE
+        }
+        BundleClassLoader loader = (BundleClassLoader) classLoader;
+        if (--loader.users > 0) {
+            return;
+        }
+        LOADERS.remove(loader.key);
+        try {
+            loader.close();
+            LOG.debug("closed classloader {}", loader.key);
+        } catch (IOException e) {
+            LOG.warn("could not close classloader {}: {}", loader.key,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * @return a new {@link ResourceManager} that loads classes and resources
+     *         (e.g. models) through this classloader
+     */
+    static ResourceManager newResourceManager(ClassLoader classLoader) {
+        ResourceManager_impl resourceManager = new ResourceManager_impl();
+        if (classLoader instanceof BundleClassLoader) {
+            resourceManager.setExtensionClassPath(
+                    (BundleClassLoader) classLoader, true);
+        }
+        return resourceManager;
+    }
+
+    /** @return a key identifying this classloader, "" for {@link #BASE} */
+    static String keyOf(ClassLoader classLoader) {
+        return classLoader instanceof BundleClassLoader ? ((BundleClassLoader) classLoader).key
+                : "";
+    }
+
+    /** @return how many pipelines use this classloader */
+    static synchronized int getUsers(ClassLoader classLoader) {
+        return classLoader instanceof BundleClassLoader ? ((BundleClassLoader) classLoader).users
+                : 0;
+    }
+}
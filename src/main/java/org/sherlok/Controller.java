@@ -23,8 +23,14 @@ import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.servlet.http.Part;
 
@@ -33,8 +39,11 @@ import org.sherlok.mappings.BundleDef.EngineDef;
 import org.sherlok.mappings.PipelineDef;
 import org.sherlok.mappings.SherlokException;
 import org.sherlok.utils.AetherResolver;
+import org.sherlok.utils.Strings;
 import org.slf4j.Logger;
 
+import com.google.common.collect.ImmutableMap;
+
 /**
  * Controller that CRUD's {@link PipelineDef} and {@link BundleDef} from disk
  * (using {@link FileBased}). This the controller for master mode.
@@ -44,13 +53,61 @@ import org.slf4j.Logger;
 public class Controller {
     protected static final Logger LOG = getLogger(Controller.class);
 
-    // these act as caching:
-    /** key:id, value:bundle */
-    protected Map<String, BundleDef> bundleDefs;
-    /** key:id, value:engine */
-    protected Map<String, EngineDef> engineDefs;
-    /** key:id, value:pipeline */
-    protected Map<String, PipelineDef> pipelineDefs;
+    /**
+     * Immutable snapshot of all definitions (acts as caching). Replaced
+     * atomically on every change, so that readers never lock.
+     */
+    protected volatile Registry registry = new Registry(
+            new HashMap<String, BundleDef>(), new HashMap<String, EngineDef>(),
+            new HashMap<String, PipelineDef>());
+
+    /** All {@link BundleDef}s, {@link EngineDef}s and {@link PipelineDef}s */
+    protected static final class Registry {
+        /** key:id, value:bundle */
+        final Map<String, BundleDef> bundleDefs;
+        /** key:id, value:engine */
+        final Map<String, EngineDef> engineDefs;
+        /** key:id, value:pipeline */
+        final Map<String, PipelineDef> pipelineDefs;
+        /** key:pipeline name, value:its versions, highest last */
+        final Map<String, SortedSet<String>> pipelineVersions;
+
+        Registry(Map<String, BundleDef> bundleDefs,
+                Map<String, EngineDef> engineDefs,
+                Map<String, PipelineDef> pipelineDefs) {
+            this.bundleDefs = ImmutableMap.copyOf(bundleDefs);
+            this.engineDefs = ImmutableMap.copyOf(engineDefs);
+            this.pipelineDefs = ImmutableMap.copyOf(pipelineDefs);
+
+            Map<String, SortedSet<String>> versions = map();
+            for (PipelineDef pd : pipelineDefs.values()) {
+                if (!versions.containsKey(pd.getName())) {
+                    versions.put(pd.getName(), new TreeSet<String>(
+                            VERSION_ORDER));
+                }
+                versions.get(pd.getName()).add(pd.getVersion());
+            }
+            for (Entry<String, SortedSet<String>> v : versions.entrySet()) {
+                v.setValue(Collections.unmodifiableSortedSet(v.getValue()));
+            }
+            this.pipelineVersions = ImmutableMap.copyOf(versions);
+        }
+
+        /** @return the highest version of this pipeline, or null */
+        String getLatestVersion(String pipelineName) {
+            SortedSet<String> versions = pipelineVersions.get(pipelineName);
+            return versions == null ? null : versions.last();
+        }
+    }
+
+    /** see {@link Strings#compareNatural(String, String)} */
+    private static final Comparator<String> VERSION_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String v1, String v2) {
+            int c = Strings.compareNatural(v1, v2);
+            return c != 0 ? c : v1.compareTo(v2);
+        }
+    };
 
     /**
      * Loads {@link BundleDef}s and {@link PipelineDef}s from
@@ -66,8 +123,9 @@ public class Controller {
 
         LOG.info(
                 "Done loading from local File store ('{}'): {} bundles, {} engines and {} pipelines",
-                new Object[] { FileBased.CONFIG_DIR_PATH, bundleDefs.size(),
-                        engineDefs.size(), pipelineDefs.size() });
+                new Object[] { FileBased.CONFIG_DIR_PATH,
+                        registry.bundleDefs.size(), registry.engineDefs.size(),
+                        registry.pipelineDefs.size() });
         return c;
     }
 
@@ -76,8 +134,8 @@ public class Controller {
             Collection<PipelineDef> pipelines) throws SherlokException {
 
         // BUNDLES AND ENGINES
-        bundleDefs = map(); // reinit
-        engineDefs = map(); // reinit
+        Map<String, BundleDef> bundleDefs = map();
+        Map<String, EngineDef> engineDefs = map();
         for (BundleDef b : bundles) {
             b.validate(b.toString());
             String key = b.getId();
@@ -102,7 +160,7 @@ public class Controller {
         }
 
         // PIPELINES
-        pipelineDefs = map(); // reinit
+        Map<String, PipelineDef> pipelineDefs = map();
         for (PipelineDef pd : pipelines) {
             pd.validate(pd.toString());
 
@@ -125,6 +183,7 @@ public class Controller {
             }
         }
 
+        registry = new Registry(bundleDefs, engineDefs, pipelineDefs);
         return this;
     }
 
@@ -133,11 +192,11 @@ public class Controller {
 
     // LIST all /////////////////////////////////////////////////////////////
     Collection<BundleDef> listBundles() {
-        return bundleDefs.values();
+        return registry.bundleDefs.values();
     }
 
     Collection<PipelineDef> listPipelines() throws SherlokException {
-        return pipelineDefs.values();
+        return registry.pipelineDefs.values();
     }
 
     Collection<String> listResources() throws SherlokException {
@@ -146,24 +205,33 @@ public class Controller {
 
     // LIST all names /////////////////////////////////////////////////////////
     Set<String> listBundleDefNames() {
-        return bundleDefs.keySet();
+        return registry.bundleDefs.keySet();
     }
 
     Set<String> listPipelineDefNames() {
-        return pipelineDefs.keySet();
+        return registry.pipelineDefs.keySet();
     }
 
     // GET by name /////////////////////////////////////////////////////////
     BundleDef getBundleDef(String bundleId) {
-        return bundleDefs.get(bundleId);
+        return registry.bundleDefs.get(bundleId);
     }
 
     EngineDef getEngineDef(String engineId) {
-        return engineDefs.get(engineId);
+        return registry.engineDefs.get(engineId);
     }
 
     PipelineDef getPipelineDef(String pipelineId) throws SherlokException {
-        return pipelineDefs.get(pipelineId);
+        return registry.pipelineDefs.get(pipelineId);
+    }
+
+    /**
+     * @return the highest version (see
+     *         {@link Strings#compareNatural(String, String)}) of this
+     *         pipeline, or null if there is no such pipeline
+     */
+    String getLatestPipelineVersion(String pipelineName) {
+        return registry.getLatestVersion(pipelineName);
     }
 
     InputStream getResource(String path) throws SherlokException {
@@ -171,22 +239,36 @@ public class Controller {
     }
 
     // PUT /////////////////////////////////////////////////////////////
+    // (writes are serialized, and replace the registry with an updated copy)
+
     /** @return the put'ed {@link BundleDef}'s id */
-    String putBundle(String bundleStr) throws SherlokException {
+    synchronized String putBundle(String bundleStr) throws SherlokException {
         BundleDef b = FileBased.putBundle(bundleStr);
         // update cached bundles and engines
+        Registry r = registry;
+        Map<String, BundleDef> bundleDefs = new HashMap<String, BundleDef>(
+                r.bundleDefs);
+        Map<String, EngineDef> engineDefs = new HashMap<String, EngineDef>(
+                r.engineDefs);
         bundleDefs.put(b.getId(), b);
         for (EngineDef e : b.getEngines()) {
             e.setBundle(b);
             engineDefs.put(e.getId(), e);
         }
+        registry = new Registry(bundleDefs, engineDefs, r.pipelineDefs);
         return b.getId();
     }
 
     /** @return the put'ed {@link PipelineDef}'s id */
-    String putPipeline(String pipelineStr) throws SherlokException {
-        PipelineDef p = FileBased.putPipeline(pipelineStr, engineDefs.keySet());
+    synchronized String putPipeline(String pipelineStr)
+            throws SherlokException {
+        Registry r = registry;
+        PipelineDef p = FileBased.putPipeline(pipelineStr,
+                r.engineDefs.keySet());
+        Map<String, PipelineDef> pipelineDefs = new HashMap<String, PipelineDef>(
+                r.pipelineDefs);
         pipelineDefs.put(p.getId(), p);
+        registry = new Registry(r.bundleDefs, r.engineDefs, pipelineDefs);
         return p.getId();
     }
 
@@ -195,21 +277,31 @@ public class Controller {
     }
 
     // DELETE /////////////////////////////////////////////////////////////
-    void deleteBundleDef(String bundleId) throws SherlokException {
-        if (!bundleDefs.containsKey(bundleId)) {
+    synchronized void deleteBundleDef(String bundleId)
+            throws SherlokException {
+        Registry r = registry;
+        if (!r.bundleDefs.containsKey(bundleId)) {
             throw new SherlokException("bundle not found", bundleId);
         } else {
+            Map<String, BundleDef> bundleDefs = new HashMap<String, BundleDef>(
+                    r.bundleDefs);
             bundleDefs.remove(bundleId);
+            registry = new Registry(bundleDefs, r.engineDefs, r.pipelineDefs);
             FileBased.deleteBundle(bundleId);
         }
     }
 
-    void deletePipelineDef(String pipelineId) throws SherlokException {
-        if (!pipelineDefs.containsKey(pipelineId)) {
+    synchronized void deletePipelineDef(String pipelineId)
+            throws SherlokException {
+        Registry r = registry;
+        if (!r.pipelineDefs.containsKey(pipelineId)) {
             throw new SherlokException("pipeline  not found", pipelineId);
         } else {
-            String domain = pipelineDefs.get(pipelineId).getDomain();
+            String domain = r.pipelineDefs.get(pipelineId).getDomain();
+            Map<String, PipelineDef> pipelineDefs = new HashMap<String, PipelineDef>(
+                    r.pipelineDefs);
             pipelineDefs.remove(pipelineId);
+            registry = new Registry(r.bundleDefs, r.engineDefs, pipelineDefs);
             FileBased.deletePipeline(pipelineId, domain);
         }
     }
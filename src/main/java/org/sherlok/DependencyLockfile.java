@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sherlok.FileBased.RUNTIME_DIR_PATH;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.sherlok.mappings.BundleDef;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persists the artifacts resolved (by Aether) for a set of bundles, so that
+ * loading another pipeline with the same bundles (or the same pipeline, after
+ * a restart) skips dependency collection and resolution altogether. Lockfiles
+ * are keyed by a hash of the bundles' dependencies and repositories, so that
+ * changing a {@link BundleDef} invalidates them.
+ *
+ * @author renaud@apache.org
+ */
+public class DependencyLockfile {
+    private static final Logger LOG = getLogger(DependencyLockfile.class);
+
+    public static final String LOCKFILES_PATH = RUNTIME_DIR_PATH
+            + "lockfiles/";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** @return a hash of what these bundles resolve */
+    static String hash(Set<BundleDef> bundleDefs) {
+        // sorted, so that the hash does not depend on the set's order
+        Map<String, Object> bundles = new TreeMap<String, Object>();
+        for (BundleDef b : bundleDefs) {
+            bundles.put(b.getId(), map("dependencies",
+                    (Object) b.getDependencies(), "repositories",
+                    new TreeMap<String, String>(b.getRepositories())));
+        }
+        try {
+            return Hashing.sha1()
+                    .hashString(MAPPER.writeValueAsString(bundles), UTF_8)
+                    .toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // should not happen
+        }
+    }
+
+    /**
+     * @return the jars resolved for these bundles, or null if there is no
+     *         lockfile for them, or if some of its jars changed (or were
+     *         deleted) since
+     */
+    static List<File> read(Set<BundleDef> bundleDefs) {
+        File lockfile = new File(LOCKFILES_PATH, hash(bundleDefs) + ".json");
+        if (!lockfile.exists()) {
+            return null;
+        }
+        List<Map<String, Object>> artifacts;
+        try {
+            artifacts = MAPPER.readValue(lockfile,
+                    new TypeReference<List<Map<String, Object>>>() {
+                    });
+        } catch (IOException e) {
+            LOG.warn("could not read lockfile '{}': {}", lockfile,
+                    e.getMessage());
+            return null;
+        }
+
+        List<File> jars = list();
+        for (Map<String, Object> artifact : artifacts) {
+            File jar = new File((String) artifact.get("file"));
+            // much cheaper than hashing the jars
+            if (!jar.exists()
+                    || jar.length() != ((Number) artifact.get("size"))
+                            .longValue()
+                    || jar.lastModified() != ((Number) artifact
+                            .get("modified")).longValue()) {
+                LOG.debug("artifact '{}' changed, ignoring lockfile '{}'",
+                        artifact.get("coordinates"), lockfile);
+                return null;
+            }
+            jars.add(jar);
+        }
+        return jars;
+    }
+
+    /**
+     * Writes the lockfile of these bundles.
+     *
+     * @param artifacts
+     *            key: the coordinates of each resolved artifact, value: its
+     *            file. In classpath order.
+     */
+    static void write(Set<BundleDef> bundleDefs, Map<String, File> artifacts)
+            throws IOException {
+        List<Map<String, Object>> entries = list();
+        for (Map.Entry<String, File> artifact : artifacts.entrySet()) {
+            File jar = artifact.getValue();
+            Map<String, Object> entry = map();
+            entry.put("coordinates", artifact.getKey());
+            entry.put("file", jar.getAbsolutePath());
+            entry.put("size", jar.length());
+            entry.put("modified", jar.lastModified());
+            entries.add(entry);
+        }
+        File lockfile = new File(LOCKFILES_PATH, hash(bundleDefs) + ".json");
+        ScriptCache.write(lockfile, MAPPER.writeValueAsBytes(entries));
+        LOG.debug("wrote lockfile '{}' with {} artifacts", lockfile,
+                entries.size());
+    }
+}
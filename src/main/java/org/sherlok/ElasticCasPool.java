@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CasHeapSize;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.CasPool;
+import org.slf4j.Logger;
+
+/**
+ * A pool of {@link CAS}es that grows on demand (up to a maximum) and shrinks
+ * back (down to a minimum) when CASes stay idle. Unlike UIMA's
+ * {@link CasPool}, CASes that grew too large (after a very large document) are
+ * discarded instead of being kept around.
+ *
+ * @author renaud@apache.org
+ */
+public class ElasticCasPool {
+    private static final Logger LOG = getLogger(ElasticCasPool.class);
+
+    /** CASes idle for longer are discarded (while above the minimum size) */
+    static final long IDLE_TIMEOUT_MS = 60 * 1000;
+
+    /** Used to create new CASes, see {@link #newCas()} */
+    private final AnalysisEngine casFactory;
+    /**
+     * Shared by all CASes of this pool: they are used interchangeably, e.g.
+     * with {@link Type}s looked up once
+     */
+    private final TypeSystem typeSystem;
+    private final int minSize;
+    private final long maxHeapBytes;
+
+    /** One permit per CAS that can still be handed out */
+    private final Semaphore permits;
+    /** Idle CASes, most recently released first */
+    private final Deque<IdleCas> idle = new ArrayDeque<IdleCas>();
+    /** Nr of CASes currently created (idle or in use) */
+    private int size = 0;
+
+    private static class IdleCas {
+        private final CAS cas;
+        private final long since;
+
+        private IdleCas(CAS cas) {
+            this.cas = cas;
+            this.since = currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param casFactory
+     *            the CASes have the types of this engine (only). Owned by
+     *            this pool, see {@link #destroy()}
+     * @param minSize
+     *            nr of CASes to create upfront, and to keep when idle
+     * @param maxSize
+     *            maximum nr of CASes
+     * @param maxHeapBytes
+     *            CASes whose heaps grew larger are discarded when released
+     */
+    public ElasticCasPool(AnalysisEngine casFactory, int minSize, int maxSize,
+            long maxHeapBytes) throws ResourceInitializationException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("invalid CAS pool sizes, min: "
+                    + minSize + ", max: " + maxSize);
+        }
+        this.casFactory = casFactory;
+        this.minSize = minSize;
+        this.maxHeapBytes = maxHeapBytes;
+        this.permits = new Semaphore(maxSize, true);
+        CAS first = CasCreationUtils.createCas(
+                asList(casFactory.getAnalysisEngineMetaData()), null,
+                casFactory.getResourceManager());
+        this.typeSystem = first.getTypeSystem();
+        for (int i = 0; i < minSize; i++) {
+            idle.push(new IdleCas(i == 0 ? first : newCas()));
+            size++;
+        }
+    }
+
+    /** Waits (without time limit) for a CAS */
+    public CAS getCas() throws ResourceInitializationException {
+        permits.acquireUninterruptibly();
+        return takeCas();
+    }
+
+    /**
+     * @param timeoutMs
+     *            how long to wait for a CAS, in milliseconds
+     * @return a CAS, or null if none became available within this time.
+     *         Must be {@link #releaseCas(CAS)}d.
+     */
+    public CAS getCas(long timeoutMs) throws ResourceInitializationException,
+            InterruptedException {
+        if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        return takeCas();
+    }
+
+    /** Takes an idle CAS, or creates one. Requires a permit. */
+    private CAS takeCas() throws ResourceInitializationException {
+        synchronized (idle) {
+            shrink();
+            IdleCas idleCas = idle.poll();
+            if (idleCas != null) {
+                return idleCas.cas;
+            }
+            size++;
+        }
+        try {
+            LOG.trace("creating new CAS");
+            return newCas();
+        } catch (ResourceInitializationException | RuntimeException e) {
+            synchronized (idle) {
+                size--;
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a new CAS, on this pool's type system (unlike
+     *         {@link AnalysisEngine#newCAS()}, that creates a new one each
+     *         time). Outside of the pool (not counted against its maximum),
+     *         e.g. to merge the CASes of other requests into: must not be
+     *         released.
+     */
+    public CAS newCas() throws ResourceInitializationException {
+        return CasCreationUtils.createCas(
+                asList(casFactory.getAnalysisEngineMetaData()), typeSystem,
+                null, casFactory.getResourceManager());
+    }
+
+    /** Gives back this CAS, and resets it (or discards it, if too large) */
+    public void releaseCas(CAS cas) {
+        try {
+            long heapBytes = CasHeapSize.getHeapCapacity(cas);
+            synchronized (idle) {
+                if (heapBytes > maxHeapBytes) {
+                    LOG.debug("discarding CAS with a heap of {} bytes",
+                            heapBytes);
+                    size--;
+                } else {
+                    cas.reset();
+                    idle.push(new IdleCas(cas));
+                }
+                shrink();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Discards CASes that were idle for too long, down to the minimum. Also
+     * called periodically (see {@link PipelineCache}), since pools that get
+     * no requests would otherwise never shrink.
+     */
+    public void shrink() {
+        shrink(currentTimeMillis());
+    }
+
+    void shrink(long now) {
+        synchronized (idle) {
+            while (size > minSize && !idle.isEmpty()
+                    && now - idle.peekLast().since > IDLE_TIMEOUT_MS) {
+                idle.pollLast();
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Discards the idle CASes, and destroys the engine that creates them. The
+     * pool must not be used afterwards.
+     */
+    public void destroy() {
+        synchronized (idle) {
+            size -= idle.size();
+            idle.clear();
+        }
+        casFactory.destroy();
+    }
+
+    /** @return the nr of CASes currently created (idle or in use) */
+    public int getSize() {
+        synchronized (idle) {
+            return size;
+        }
+    }
+}
@@ -15,14 +15,18 @@
  */
 package org.sherlok;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.sherlok.config.ConfigVariableManager.processConfigVariables;
 import static org.sherlok.utils.Create.map;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,6 +36,7 @@ import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
 import org.sherlok.config.NoSuchVariableException;
 import org.sherlok.config.ProcessConfigVariableException;
 import org.sherlok.mappings.BundleDef.EngineDef;
@@ -55,12 +60,33 @@ public class EngineOps {
      */
     private static final String ENGINE_ID_SEPARATOR = "___";
 
+    /** An engine's generated XML descriptor */
+    static class Descriptor {
+        /** how Ruta scripts refer to this engine */
+        final String name;
+        /** hash of the engine's class, jar, resolved parameters and types */
+        final String fingerprint;
+
+        Descriptor(String name, String fingerprint) {
+            this.name = name;
+            this.fingerprint = fingerprint;
+        }
+
+        /** @return the descriptor, that never changes (named by its hash) */
+        File getFile() {
+            return new File(FileBased.ENGINE_CACHE_PATH + fingerprint + ".xml");
+        }
+    }
+
     /**
      * Generate XML descriptor and return engine's descriptor
+     * 
+     * @param tsd
+     *            the pipeline's types (saves rescanning the classpath for them)
      */
-    static String generateXmlDescriptor(String engineId,
-            List<EngineDef> engineDefs) throws SherlokException,
-            ResourceInitializationException {
+    static Descriptor generateXmlDescriptor(String engineId,
+            List<EngineDef> engineDefs, TypeSystemDescription tsd)
+            throws SherlokException, ResourceInitializationException {
 
         EngineDef engineDef = findEngineDefById(engineId, engineDefs);
 
@@ -68,26 +94,55 @@ public class EngineOps {
         Map<String, Object> engineParameters = extractParameters(engineDef);
         Object[] flatParamsArray = MapOps.flattenParameters(engineParameters);
 
-        // construct AE
         Class<? extends AnalysisComponent> classz = extractAnalysisComponentClass(engineDef);
         String engineDescription = engineDef
                 .getIdForDescriptor(ENGINE_ID_SEPARATOR);
-        AnalysisEngineDescription aed = AnalysisEngineFactory
-                .createEngineDescription(classz, flatParamsArray);
 
-        // generate XML descriptor
+        // reuse XML descriptor, if generated from the same class, parameters
+        // & types. Descriptors are named by this hash, so that pipelines
+        // loading concurrently with other parameters never overwrite each
+        // other's
         try {
-            File tmpEngine = new File(FileBased.ENGINE_CACHE_PATH
+            CodeSource codeSource = classz.getProtectionDomain()
+                    .getCodeSource();
+            ByteArrayOutputStream types = new ByteArrayOutputStream();
+            tsd.toXML(types);
+            String source = classz.getName() + " "
+                    + (codeSource == null ? "" : codeSource.getLocation())
+                    + " " + Arrays.deepToString(flatParamsArray) + " "
+                    + ScriptCache.hash(types.toString(UTF_8.name()));
+            Descriptor descriptor = new Descriptor(engineDescription,
+                    ScriptCache.hash(source));
+            File tmpEngine = descriptor.getFile();
+
+            if (!tmpEngine.exists()) {
+                // construct AE
+                AnalysisEngineDescription aed = AnalysisEngineFactory
+                        .createEngineDescription(classz, tsd, flatParamsArray);
+
+                // generate XML descriptor (atomically, other pipelines may be
+                // loading the same engine concurrently)
+                ByteArrayOutputStream xml = new ByteArrayOutputStream();
+                aed.toXML(xml);
+                ScriptCache.write(tmpEngine, xml.toByteArray());
+            }
+
+            // Ruta locates engines by name (then gets them from the
+            // EngineRegistry), so a descriptor with that name must exist. It
+            // is rewritten (atomically) when the engine changes, e.g. its
+            // parameters, to stay the same as the one actually loaded
+            File named = new File(FileBased.ENGINE_CACHE_PATH
                     + engineDescription + ".xml");
-            tmpEngine.getParentFile().mkdirs();
-            FileOutputStream fos = new FileOutputStream(tmpEngine);
-            aed.toXML(fos);
+            byte[] xml = Files.readAllBytes(tmpEngine.toPath());
+            if (!named.exists()
+                    || !Arrays.equals(xml, Files.readAllBytes(named.toPath()))) {
+                ScriptCache.write(named, xml);
+            }
+            return descriptor;
         } catch (SAXException | IOException e) {
             throw new RuntimeException("could not write descriptor of "
                     + engineId, e); // should not happen
         }
-
-        return engineDescription;
     }
 
     /**
@@ -171,12 +226,14 @@ public class EngineOps {
         return params;
     }
 
+    /** Loads the class from the pipeline's jars (the context classloader) */
     @SuppressWarnings("unchecked")
     private static Class<? extends AnalysisComponent> extractAnalysisComponentClass(
             EngineDef engineDef) throws SherlokException {
         try {
-            return (Class<? extends AnalysisComponent>) Class.forName(engineDef
-                    .getClassz());
+            return (Class<? extends AnalysisComponent>) Class.forName(
+                    engineDef.getClassz(), true, Thread.currentThread()
+                            .getContextClassLoader());
         } catch (ClassNotFoundException e) {
             throw new SherlokException().setMessage(
                     "could not find AnalysisComponent class").setObject(
@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.sherlok.utils.Create.map;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.descriptor.TypeCapability;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.ResourceManager;
+import org.apache.uima.resource.ResourceSpecifier;
+import org.apache.uima.resource.metadata.Capability;
+import org.apache.uima.ruta.engine.RutaEngine;
+import org.apache.uima.ruta.extensions.IEngineLoader;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+import org.sherlok.EngineOps.Descriptor;
+import org.sherlok.utils.HeapSize;
+import org.slf4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Process-wide registry of the engines that Ruta scripts EXECute, so that
+ * pipelines using the same engine (same class, jar and resolved parameters,
+ * see {@link EngineOps#generateXmlDescriptor}) and the same classloader (see
+ * {@link BundleClassLoaders}) share one loaded instance (and its models),
+ * instead of each loading their own.<br>
+ * Shared engines are reference-counted (see
+ * {@link #acquire(Descriptor, int, ClassLoader)} and {@link #release(String)}
+ * ), and destroyed once no pipeline uses them anymore. They are UIMA
+ * multiprocessing engines (thread-safe), and load their resources through one
+ * {@link ResourceManager} per classloader. Ruta gets them through
+ * {@link Loader}.
+ *
+ * @author renaud@apache.org
+ */
+public class EngineRegistry {
+    private static final Logger LOG = getLogger(EngineRegistry.class);
+
+    /** k: classloader key, see {@link BundleClassLoaders#keyOf} */
+    private static final Map<String, ResourceManager> RESOURCE_MANAGERS = map();
+    /**
+     * k: fingerprint (class, jar and resolved parameters) @ classloader key #
+     * instances
+     */
+    private static final Map<String, SharedEngine> ENGINES = map();
+    /**
+     * The engines of the pipeline this thread is initializing (k: descriptor
+     * name, v: key in {@link #ENGINES}), that {@link Loader} hands to Ruta
+     */
+    private static final ThreadLocal<Map<String, String>> BOUND = new ThreadLocal<Map<String, String>>();
+
+    private static class SharedEngine {
+        /** set once loaded (outside the registry lock) */
+        private final SettableFuture<AnalysisEngine> engine = SettableFuture
+                .create();
+        private final String classLoaderKey;
+        /** one permit per idle instance, see {@link #getInstances(String)} */
+        private final Semaphore instances;
+        private int users = 0;
+        /** estimated retained heap, see {@link HeapSize#retainedBytes} */
+        private volatile long bytes = 0;
+
+        private SharedEngine(String classLoaderKey, int instances) {
+            this.classLoaderKey = classLoaderKey;
+            this.instances = new Semaphore(instances, true);
+        }
+    }
+
+    /**
+     * Loads this engine (from its XML descriptor), unless an identical one is
+     * already loaded (or waits for the thread loading it). Must be
+     * {@link #release(String)}d.
+     *
+     * @param descriptor
+     *            as generated by {@link EngineOps#generateXmlDescriptor}
+     * @param instances
+     *            how many instances the engine has (how many documents it can
+     *            process simultaneously); only pipelines with as many
+     *            replicas share it
+     * @param classLoader
+     *            the classloader of the pipeline's bundles
+     * @return the key of the engine, to {@link #bind(Map)} and release it
+     */
+    static String acquire(Descriptor descriptor, int instances,
+            ClassLoader classLoader) throws ResourceInitializationException,
+            IOException {
+        String classLoaderKey = BundleClassLoaders.keyOf(classLoader);
+        String key = descriptor.fingerprint + "@" + classLoaderKey + "#"
+                + instances;
+        SharedEngine shared;
+        ResourceManager resourceManager = null;
+        synchronized (EngineRegistry.class) {
+            shared = ENGINES.get(key);
+            if (shared == null) {
+                shared = new SharedEngine(classLoaderKey, instances);
+                ENGINES.put(key, shared);
+                resourceManager = RESOURCE_MANAGERS.get(classLoaderKey);
+                if (resourceManager == null) {
+                    resourceManager = BundleClassLoaders
+                            .newResourceManager(classLoader);
+                    RESOURCE_MANAGERS.put(classLoaderKey, resourceManager);
+                }
+            }
+            shared.users++;
+        }
+
+        if (resourceManager != null) { // this thread loads it
+            LOG.debug("loading shared engine '{}', {} instance(s)",
+                    descriptor.name, instances);
+            try {
+                ResourceSpecifier spec = UIMAFramework.getXMLParser()
+                        .parseResourceSpecifier(
+                                new XMLInputSource(descriptor.getFile()));
+                Map<String, Object> params = map();
+                params.put(AnalysisEngine.PARAM_NUM_SIMULTANEOUS_REQUESTS,
+                        instances);
+                long allocatedBefore = PipelineCache.allocatedBytes();
+                AnalysisEngine engine = UIMAFramework.produceAnalysisEngine(
+                        spec, resourceManager, params);
+                long retained = HeapSize.retainedBytes(engine);
+                shared.bytes = retained >= 0 ? retained : Math.max(0,
+                        PipelineCache.allocatedBytes() - allocatedBefore);
+                shared.engine.set(engine);
+            } catch (Throwable t) {
+                synchronized (EngineRegistry.class) {
+                    remove(key, shared);
+                }
+                shared.engine.setException(t);
+            }
+        } else {
+            LOG.debug("reusing shared engine '{}'", descriptor.name);
+        }
+
+        try {
+            shared.engine.get();
+            return key;
+        } catch (InterruptedException e) {
+            release(key);
+            Thread.currentThread().interrupt();
+            throw new ResourceInitializationException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(),
+                    ResourceInitializationException.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            if (e.getCause() instanceof InvalidXMLException) {
+                throw new IOException(e.getCause());
+            }
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /** Destroys this engine if no pipeline uses it anymore */
+    static void release(String key) {
+        SharedEngine shared;
+        synchronized (EngineRegistry.class) {
+            shared = ENGINES.get(key);
+            if (shared == null || --shared.users > 0) {
+                return;
+            }
+            remove(key, shared);
+        }
+        // not under the lock, other pipelines keep loading meanwhile
+        if (shared.engine.isDone()) { // else it failed to load
+            try {
+                shared.engine.get().destroy();
+                LOG.debug("destroyed shared engine {}", key);
+            } catch (InterruptedException | ExecutionException e) {
+                // nothing to destroy
+            }
+        }
+    }
+
+    /**
+     * Removes this engine (unless replaced meanwhile), and its resource
+     * manager once none of its classloader's engines are left
+     */
+    private static void remove(String key, SharedEngine shared) {
+        if (ENGINES.get(key) != shared) {
+            return;
+        }
+        ENGINES.remove(key);
+        for (SharedEngine other : ENGINES.values()) {
+            if (other.classLoaderKey.equals(shared.classLoaderKey)) {
+                return;
+            }
+        }
+        RESOURCE_MANAGERS.remove(shared.classLoaderKey);
+    }
+
+    /** @return how many pipelines use this engine */
+    static synchronized int getUsers(String key) {
+        SharedEngine shared = ENGINES.get(key);
+        return shared == null ? 0 : shared.users;
+    }
+
+    /**
+     * @return one permit per idle instance of this engine, null if released.
+     *         Pipelines sharing it take one before processing a document (and
+     *         wait for it with a timeout), as the engine itself would wait for
+     *         an idle instance without one.
+     */
+    static synchronized Semaphore getInstances(String key) {
+        SharedEngine shared = ENGINES.get(key);
+        return shared == null ? null : shared.instances;
+    }
+
+    /** @return the estimated size of this engine, 0 if released */
+    static synchronized long getBytes(String key) {
+        SharedEngine shared = ENGINES.get(key);
+        return shared == null ? 0 : shared.bytes;
+    }
+
+    /**
+     * @return the types this engine declares it uses (see
+     *         {@link TypeCapability}), once acquired
+     */
+    static Capability[] getCapabilities(String key) {
+        AnalysisEngine engine = get(key);
+        return engine == null ? new Capability[0] : engine
+                .getAnalysisEngineMetaData().getCapabilities();
+    }
+
+    /** @return this engine, once acquired; null if released */
+    static AnalysisEngine get(String key) {
+        SharedEngine shared;
+        synchronized (EngineRegistry.class) {
+            shared = ENGINES.get(key);
+        }
+        return shared == null ? null : Futures.getUnchecked(shared.engine);
+    }
+
+    /**
+     * Hands these engines to Ruta (see {@link Loader}) for the pipeline this
+     * thread initializes, until {@link #unbind()}.
+     *
+     * @param engines
+     *            k: descriptor name, v: key from
+     *            {@link #acquire(Descriptor, int, ClassLoader)}
+     */
+    static void bind(Map<String, String> engines) {
+        BOUND.set(engines);
+    }
+
+    static void unbind() {
+        BOUND.remove();
+    }
+
+    /**
+     * Hands the shared engines to {@link RutaEngine}, see
+     * {@link RutaEngine#PARAM_ADDITIONAL_ENGINE_LOADERS}. Ruta gets its
+     * engines while it is initialized, by the thread initializing its
+     * pipeline, that {@link EngineRegistry#bind(Map)}s them.
+     */
+    public static class Loader implements IEngineLoader {
+
+        private static Map<String, String> bound() {
+            Map<String, String> bound = BOUND.get();
+            return bound == null ? new HashMap<String, String>() : bound;
+        }
+
+        @Override
+        public String[] getKnownEngines() {
+            Set<String> names = bound().keySet();
+            return names.toArray(new String[names.size()]);
+        }
+
+        @Override
+        public AnalysisEngine loadEngine(String location, String viewName)
+                throws ResourceInitializationException {
+            String name = new File(location).getName().replaceFirst(
+                    "\\.xml$", "");
+            String key = bound().get(name);
+            AnalysisEngine engine = key == null ? null : get(key);
+            if (engine == null) {
+                throw new ResourceInitializationException(
+                        new IllegalStateException("engine '" + name
+                                + "' was released"));
+            }
+            return engine;
+        }
+    }
+}
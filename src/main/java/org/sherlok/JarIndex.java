@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.sherlok.FileBased.RUNTIME_DIR_PATH;
+import static org.sherlok.utils.Create.map;
+import static org.sherlok.utils.Create.set;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Decides whether a jar needs to be added to the classpath, without opening
+ * it: the packages of each jar are listed once, and persisted (keyed by the
+ * jar's path, size and modification time) in {@link #JAR_INDEX_PATH}. A jar is
+ * considered on the classpath if it was added before, or if another version
+ * of the same artifact provides some of its packages (in which case a
+ * shadowing warning is logged).
+ *
+ * @author renaud@apache.org
+ */
+public class JarIndex {
+    private static final Logger LOG = getLogger(JarIndex.class);
+
+    public static final String JAR_INDEX_PATH = RUNTIME_DIR_PATH
+            + "jar_index.json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static JarIndex instance;
+
+    private final File indexFile;
+    /** key: jar path, value: its size, modification time and packages */
+    private final Map<String, IndexedJar> index;
+    /** Whether {@link #index} changed since it was last saved */
+    private boolean dirty = false;
+    /** key: package, value: the jar providing it on the classpath */
+    private final Map<String, File> packageOwners = map();
+    /** paths of the jars on the classpath */
+    private final Set<String> onClasspath = set();
+
+    /** A jar's fingerprint and packages, as persisted */
+    static class IndexedJar {
+        public long size;
+        public long modified;
+        public Set<String> packages;
+    }
+
+    /** @return the index, knowing the jars of the initial classpath */
+    public static synchronized JarIndex get() {
+        if (instance == null) {
+            instance = new JarIndex(new File(JAR_INDEX_PATH));
+            for (String path : System.getProperty("java.class.path").split(
+                    File.pathSeparator)) {
+                File jar = new File(path);
+                if (jar.isFile() && path.endsWith(".jar")) {
+                    try {
+                        instance.addedToClasspath(jar);
+                    } catch (IOException e) {
+                        LOG.warn("could not index jar '{}': {}", path,
+                                e.getMessage());
+                    }
+                }
+            }
+            instance.save();
+        }
+        return instance;
+    }
+
+    JarIndex(File indexFile) {
+        Map<String, IndexedJar> persisted = null;
+        if (indexFile.exists()) {
+            try {
+                persisted = MAPPER.readValue(indexFile,
+                        new TypeReference<Map<String, IndexedJar>>() {
+                        });
+            } catch (IOException e) {
+                LOG.warn("could not read jar index, rebuilding it: {}",
+                        e.getMessage());
+            }
+        }
+        this.index = persisted != null ? persisted
+                : new HashMap<String, IndexedJar>();
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return true if this jar (or another version of it) is already on the
+     *         classpath
+     */
+    public synchronized boolean isOnClasspath(File jar) throws IOException {
+        if (!jar.getName().endsWith(".jar")) { // e.g. poms
+            return false;
+        }
+        if (onClasspath.contains(jar.getAbsolutePath())) {
+            return true;
+        }
+        String artifactId = artifactId(jar);
+        for (String pkg : getPackages(jar)) {
+            File owner = packageOwners.get(pkg);
+            if (owner != null && artifactId.equals(artifactId(owner))) {
+                if (!owner.getName().equals(jar.getName())) {
+                    LOG.warn("'{}' is shadowed by '{}', already on the "
+                            + "classpath", jar.getName(), owner.getName());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Records that this jar was added to the classpath */
+    public synchronized void addedToClasspath(File jar) throws IOException {
+        if (onClasspath.add(jar.getAbsolutePath())) {
+            for (String pkg : getPackages(jar)) {
+                if (!packageOwners.containsKey(pkg)) { // first one wins
+                    packageOwners.put(pkg, jar);
+                }
+            }
+        }
+    }
+
+    /** Persists the packages of newly seen jars */
+    public synchronized void save() {
+        if (dirty) {
+            try {
+                ScriptCache.write(indexFile, MAPPER.writeValueAsBytes(index));
+                dirty = false;
+            } catch (IOException e) {
+                LOG.warn("could not save jar index: {}", e.getMessage());
+            }
+        }
+    }
+
+    /** @return the packages of this jar (that contain classes) */
+    private Set<String> getPackages(File jar) throws IOException {
+        IndexedJar indexed = index.get(jar.getAbsolutePath());
+        if (indexed != null && indexed.size == jar.length()
+                && indexed.modified == jar.lastModified()) {
+            return indexed.packages;
+        }
+
+        indexed = new IndexedJar();
+        indexed.size = jar.length();
+        indexed.modified = jar.lastModified();
+        indexed.packages = new TreeSet<String>();
+        try (ZipFile zip = new ZipFile(jar)) { // only reads the directory
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                int slash = name.lastIndexOf('/');
+                if (name.endsWith(".class") && slash > 0
+                        && !name.startsWith("META-INF/")) {
+                    indexed.packages.add(name.substring(0, slash).replace(
+                            '/', '.'));
+                }
+            }
+        }
+        index.put(jar.getAbsolutePath(), indexed);
+        dirty = true;
+        return indexed.packages;
+    }
+
+    /** @return the artifact id of this jar, e.g. 'uimaj-core' */
+    static String artifactId(File jar) {
+        return jar.getName().replaceFirst("(-\\d.*)?\\.jar$", "");
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sherlok.FileBased.RUNTIME_DIR_PATH;
+import static org.sherlok.utils.Create.map;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.sherlok.mappings.ServerBusyException;
+import org.sherlok.mappings.SherlokException;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs annotation jobs asynchronously (e.g. for long documents), on a bounded
+ * executor that is separate from the HTTP request threads. The texts of queued
+ * jobs are spooled to {@link #JOBS_PATH} (so that a full queue of long
+ * documents does not fill the heap), and so are their results, kept until
+ * they are fetched or expire.
+ *
+ * @author renaud@apache.org
+ */
+public class JobManager {
+    private static final Logger LOG = getLogger(JobManager.class);
+
+    public static final String JOBS_PATH = RUNTIME_DIR_PATH + "jobs/";
+
+    /** Nr of jobs that can wait to be run; more get rejected */
+    static final int MAX_QUEUED_JOBS = 1000;
+    /** How long finished jobs (and their results) are kept */
+    static final long JOB_EXPIRATION_MS = 60 * 60 * 1000;
+
+    /** Nr of jobs run in parallel, see {@link #setDefaultThreads(int)} */
+    private static int defaultThreads = Math.max(1, Runtime.getRuntime()
+            .availableProcessors() / 2);
+
+    public enum Status {
+        queued, running, done, failed
+    }
+
+    /** What a running job currently does */
+    public enum Stage {
+        /** resolving (and possibly loading) its pipeline */
+        loading,
+        /** running the pipeline's engines */
+        annotating,
+        /** writing its result */
+        writing
+    }
+
+    private final PipelineLoader pipelineLoader;
+    private final File jobsDir;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService expirer;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+    /** An annotation job, run on the {@link JobManager}'s executor */
+    public class Job implements Runnable {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String pipelineName, version;
+        private final long created = currentTimeMillis();
+        private volatile long started = 0, finished = 0;
+        private volatile Status status = Status.queued;
+        /** while {@link Status#running} */
+        private volatile Stage stage;
+        private volatile SherlokException error;
+
+        private Job(String pipelineName, String version) {
+            this.pipelineName = pipelineName;
+            this.version = version;
+        }
+
+        @Override
+        public void run() {
+            started = currentTimeMillis();
+            stage = Stage.loading;
+            status = Status.running;
+            File tmp = new File(jobsDir, id + ".tmp");
+            try {
+                UimaPipeline pipeline = pipelineLoader.resolvePipeline(
+                        pipelineName, version);
+                String text = new String(Files.readAllBytes(getTextFile()
+                        .toPath()), UTF_8);
+                Map<String, Object> stats = map();
+                stats.put("_queued", started - created);
+                stage = Stage.annotating;
+                try (Writer out = new StageWriter(new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(tmp),
+                                UTF_8)))) {
+                    pipeline.annotate(text, out, false, stats);
+                }
+                Files.move(tmp.toPath(), getResultFile().toPath());
+                status = Status.done;
+
+            } catch (SherlokException e) {
+                error = e;
+                status = Status.failed;
+            } catch (Exception e) {
+                LOG.warn("job '" + id + "' failed", e);
+                error = new SherlokException("job failed", id).setDetails(e
+                        .toString());
+                status = Status.failed;
+            } finally {
+                FileUtils.deleteQuietly(tmp);
+                FileUtils.deleteQuietly(getTextFile());
+                stage = null;
+                finished = currentTimeMillis();
+            }
+        }
+
+        /** Switches to {@link Stage#writing} once the result gets written */
+        private class StageWriter extends FilterWriter {
+
+            private StageWriter(Writer out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int c) throws IOException {
+                stage = Stage.writing;
+                super.write(c);
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len)
+                    throws IOException {
+                stage = Stage.writing;
+                super.write(cbuf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                stage = Stage.writing;
+                super.write(str, off, len);
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /** @return what this job currently does, or null if not running */
+        public Stage getStage() {
+            return stage;
+        }
+
+        public SherlokException getError() {
+            return error;
+        }
+
+        /** Where its text waits until the job runs */
+        private File getTextFile() {
+            return new File(jobsDir, id + ".txt");
+        }
+
+        private File getResultFile() {
+            return new File(jobsDir, id + ".json");
+        }
+
+        /** @return the status of this job, as JSON */
+        public Map<String, Object> toJson() {
+            Map<String, Object> json = map();
+            json.put("id", id);
+            json.put("pipeline", pipelineName);
+            if (version != null) {
+                json.put("version", version);
+            }
+            json.put("status", status);
+            json.put("created", created);
+            if (status == Status.queued) {
+                json.put("queue_position", getQueuePosition(this));
+            } else {
+                json.put("started", started);
+                Stage stage = this.stage;
+                if (stage != null) {
+                    json.put("stage", stage);
+                }
+                if (finished > 0) {
+                    json.put("finished", finished);
+                } else {
+                    json.put("elapsed", currentTimeMillis() - started);
+                }
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+    }
+
+    public JobManager(PipelineLoader pipelineLoader) {
+        this(pipelineLoader, defaultThreads, new File(JOBS_PATH));
+    }
+
+    JobManager(PipelineLoader pipelineLoader, int threads, File jobsDir) {
+        this.pipelineLoader = pipelineLoader;
+        this.jobsDir = jobsDir;
+        // results of a previous run can not be fetched anymore
+        FileUtils.deleteQuietly(jobsDir);
+        jobsDir.mkdirs();
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        MAX_QUEUED_JOBS), new ThreadFactoryBuilder()
+                        .setDaemon(true).setNameFormat("sherlok-job-%d")
+                        .build());
+        expirer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setDaemon(true).setNameFormat("sherlok-job-expirer")
+                        .build());
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire(JOB_EXPIRATION_MS);
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param threads
+     *            how many jobs are run in parallel
+     */
+    public static void setDefaultThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "job threads must be at least 1, but was " + threads);
+        }
+        defaultThreads = threads;
+    }
+
+    /**
+     * Queues a new annotation job, spooling its text to disk until it runs.
+     * 
+     * @throws ServerBusyException
+     *             if too many jobs are already queued
+     * @throws SherlokException
+     *             if its text could not be spooled
+     */
+    public Job submit(String pipelineName, String version, String text)
+            throws SherlokException {
+        Job job = new Job(pipelineName, version);
+        try {
+            Files.write(job.getTextFile().toPath(), text.getBytes(UTF_8));
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(job.getTextFile());
+            throw new SherlokException("could not queue job", pipelineName)
+                    .setDetails(e.getMessage());
+        }
+        jobs.put(job.id, job);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            FileUtils.deleteQuietly(job.getTextFile());
+            throw (ServerBusyException) new ServerBusyException(
+                    "too many queued jobs", pipelineName, 60)
+                    .setRemedy("retry later");
+        }
+        return job;
+    }
+
+    /** @return this job, or null if not found (or expired) */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Writes the result of this (done) job, then removes it. Only one of
+     * concurrent requests for the same result gets it.
+     *
+     * @return false if its result was already fetched (or expired) meanwhile
+     */
+    public boolean writeResultAndRemove(Job job, OutputStream out)
+            throws IOException {
+        if (!jobs.remove(job.id, job)) {
+            return false;
+        }
+        try {
+            Files.copy(job.getResultFile().toPath(), out);
+            out.flush();
+        } finally {
+            FileUtils.deleteQuietly(job.getResultFile());
+        }
+        return true;
+    }
+
+    /** Removes jobs that finished more than this time ago */
+    void expire(long expirationMs) {
+        long now = currentTimeMillis();
+        for (Job job : jobs.values()) {
+            if (job.finished > 0 && now - job.finished > expirationMs
+                    && jobs.remove(job.id, job)) { // unless fetched meanwhile
+                LOG.debug("expiring job '{}'", job.id);
+                FileUtils.deleteQuietly(job.getResultFile());
+            }
+        }
+    }
+
+    /** @return how many jobs are queued before this one */
+    private int getQueuePosition(Job job) {
+        int position = 0;
+        for (Runnable queued : executor.getQueue()) {
+            if (queued == job) {
+                return position;
+            }
+            position++;
+        }
+        return 0; // just started
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.lang.System.currentTimeMillis;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Caches loaded {@link UimaPipeline}s within a heap budget: when the
+ * (estimated) size of all pipelines exceeds it, the least recently used ones
+ * are evicted (and closed). Pipelines that stay unused for too long are
+ * evicted as well. Pinned pipelines (see
+ * {@link org.sherlok.mappings.PipelineDef#isPinned()}) are never evicted,
+ * except when removed explicitly.
+ *
+ * @author renaud@apache.org
+ */
+public class PipelineCache {
+    private static final Logger LOG = getLogger(PipelineCache.class);
+
+    /** Used by {@link PipelineLoader}s, see {@link #setDefaults(int, int)} */
+    private static long defaultMaxBytes = Runtime.getRuntime().maxMemory() / 2;
+    private static long defaultIdleTimeoutMs = 0;
+
+    private final long maxBytes;
+    private final long idleTimeoutMs;
+
+    /** Read without locking; changes are synchronized on this cache */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /** Orders accesses, for the least recently used eviction */
+    private static final AtomicLong ACCESSES = new AtomicLong();
+
+    private static class Entry {
+        private final UimaPipeline pipeline;
+        private final long sizeBytes;
+        private final long loaded = currentTimeMillis();
+        private volatile long lastUsed = loaded;
+        private volatile long lastAccess = ACCESSES.incrementAndGet();
+
+        private Entry(UimaPipeline pipeline, long sizeBytes) {
+            this.pipeline = pipeline;
+            this.sizeBytes = sizeBytes;
+        }
+
+        private void used() {
+            lastUsed = currentTimeMillis();
+            lastAccess = ACCESSES.incrementAndGet();
+        }
+
+        private boolean isPinned() {
+            return pipeline.getPipelineDef().isPinned();
+        }
+
+        /**
+         * @return its own size, plus its share of the engines it shares with
+         *         other pipelines (which changes as they get loaded, evicted)
+         */
+        private long size() {
+            return sizeBytes + pipeline.getSharedEngineBytes();
+        }
+    }
+
+    /** Least recently used first */
+    private static final Comparator<Map.Entry<String, Entry>> LRU_ORDER = new Comparator<Map.Entry<String, Entry>>() {
+        @Override
+        public int compare(Map.Entry<String, Entry> e1,
+                Map.Entry<String, Entry> e2) {
+            return Long.compare(e1.getValue().lastAccess,
+                    e2.getValue().lastAccess);
+        }
+    };
+
+    /**
+     * @param maxBytes
+     *            the heap budget of all cached pipelines
+     * @param idleTimeoutMs
+     *            pipelines unused for longer are evicted. 0 to never evict
+     *            idle pipelines.
+     */
+    public PipelineCache(long maxBytes, long idleTimeoutMs) {
+        this.maxBytes = maxBytes;
+        this.idleTimeoutMs = idleTimeoutMs;
+        long sweepMs = idleTimeoutMs > 0 ? Math.max(1000, idleTimeoutMs / 10)
+                : ElasticCasPool.IDLE_TIMEOUT_MS;
+        ScheduledExecutorService evicter = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("sherlok-pipeline-evicter").build());
+        evicter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (PipelineCache.this.idleTimeoutMs > 0) {
+                        evictIdle();
+                    }
+                    shrinkCasPools();
+                } catch (RuntimeException e) { // keep sweeping
+                    LOG.warn("could not sweep pipeline cache", e);
+                }
+            }
+        }, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Creates a cache with the defaults set through the command line */
+    static PipelineCache createDefault() {
+        return new PipelineCache(defaultMaxBytes, defaultIdleTimeoutMs);
+    }
+
+    /**
+     * @param maxMegabytes
+     *            heap budget of the cached pipelines, 0 for half of the max
+     *            heap
+     * @param idleTimeoutMinutes
+     *            after how long unused pipelines are evicted, 0 for never
+     */
+    public static void setDefaults(int maxMegabytes, int idleTimeoutMinutes) {
+        if (maxMegabytes < 0 || idleTimeoutMinutes < 0) {
+            throw new IllegalArgumentException(
+                    "pipeline cache size and idle timeout must be positive, but were "
+                            + maxMegabytes + ", " + idleTimeoutMinutes);
+        }
+        defaultMaxBytes = maxMegabytes > 0 ? maxMegabytes * 1024l * 1024l
+                : Runtime.getRuntime().maxMemory() / 2;
+        defaultIdleTimeoutMs = idleTimeoutMinutes * 60 * 1000l;
+    }
+
+    /** @return this pipeline, or null if not cached (does not lock) */
+    public UimaPipeline get(String pipelineId) {
+        Entry e = entries.get(pipelineId);
+        if (e == null) {
+            return null;
+        }
+        e.used();
+        return e.pipeline;
+    }
+
+    /**
+     * Caches this pipeline, then evicts the least recently used (unpinned)
+     * pipelines until all fit in the heap budget. The pipeline that was just
+     * put is never evicted.
+     *
+     * @param sizeBytes
+     *            the estimated size of this pipeline, without its shared
+     *            engines, see {@link UimaPipeline#getBytes()}
+     */
+    public void put(String pipelineId, UimaPipeline pipeline, long sizeBytes) {
+        List<Entry> evicted = list();
+        synchronized (this) {
+            Entry previous = entries.put(pipelineId, new Entry(pipeline,
+                    sizeBytes));
+            if (previous != null) {
+                evicted.add(previous);
+            }
+
+            long bytes = getBytes();
+            if (bytes > maxBytes) {
+                for (Map.Entry<String, Entry> e : leastRecentlyUsedFirst()) {
+                    if (bytes <= maxBytes) {
+                        break;
+                    }
+                    if (!e.getKey().equals(pipelineId)
+                            && !e.getValue().isPinned()) {
+                        long size = e.getValue().size();
+                        LOG.info("evicting pipeline '{}' ({} bytes), over "
+                                + "budget", e.getKey(), size);
+                        evicted.add(removeEntry(e.getKey()));
+                        bytes -= size;
+                    }
+                }
+            }
+            if (bytes > maxBytes) {
+                LOG.warn("pipelines use {} bytes, over the budget of {} bytes",
+                        bytes, maxBytes);
+            }
+        }
+        close(evicted);
+    }
+
+    /** @return whether this pipeline is cached (without touching it) */
+    public boolean contains(String pipelineId) {
+        return entries.containsKey(pipelineId);
+    }
+
+    /** @return the ids of the cached pipelines */
+    public List<String> getIds() {
+        return list(entries.keySet());
+    }
+
+    /** Removes and closes this pipeline (if cached) */
+    public void remove(String pipelineId) {
+        Entry e;
+        synchronized (this) {
+            e = removeEntry(pipelineId);
+        }
+        if (e != null) {
+            e.pipeline.close();
+        }
+    }
+
+    /** Removes and closes all pipelines */
+    public void clear() {
+        List<Entry> evicted = list();
+        synchronized (this) {
+            for (String pipelineId : getIds()) {
+                evicted.add(removeEntry(pipelineId));
+            }
+        }
+        close(evicted);
+    }
+
+    /** Evicts the (unpinned) pipelines unused for too long */
+    void evictIdle() {
+        List<Entry> evicted = list();
+        synchronized (this) {
+            long now = currentTimeMillis();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (!e.getValue().isPinned()
+                        && now - e.getValue().lastUsed > idleTimeoutMs) {
+                    LOG.info("evicting pipeline '{}', idle", e.getKey());
+                    evicted.add(removeEntry(e.getKey()));
+                }
+            }
+        }
+        close(evicted);
+    }
+
+    /**
+     * Shrinks the CAS pools of the cached pipelines, that only shrink on their
+     * own when they get requests
+     */
+    void shrinkCasPools() {
+        for (Entry e : entries.values()) {
+            e.pipeline.shrinkCasPool();
+        }
+    }
+
+    /** Must hold the lock. @return the removed entry, or null */
+    private Entry removeEntry(String pipelineId) {
+        return entries.remove(pipelineId);
+    }
+
+    /**
+     * Closes the evicted pipelines (once they are not used anymore), without
+     * holding the lock: closing can take long (destroying engines, closing
+     * classloaders), and must not block requests.
+     */
+    private static void close(List<Entry> evicted) {
+        for (Entry e : evicted) {
+            e.pipeline.close();
+        }
+    }
+
+    /** @return the cached entries, least recently used first */
+    private List<Map.Entry<String, Entry>> leastRecentlyUsedFirst() {
+        List<Map.Entry<String, Entry>> lru = list(entries.entrySet());
+        Collections.sort(lru, LRU_ORDER);
+        return lru;
+    }
+
+    /**
+     * @return the cached pipelines (least recently used first), with their
+     *         estimated size and usage
+     */
+    public List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = list();
+        for (Map.Entry<String, Entry> e : leastRecentlyUsedFirst()) {
+            Map<String, Object> s = map();
+            s.put("id", e.getKey());
+            s.put("size_bytes", e.getValue().size());
+            s.put("pinned", e.getValue().isPinned());
+            s.put("loaded", e.getValue().loaded);
+            s.put("last_used", e.getValue().lastUsed);
+            stats.add(s);
+        }
+        return stats;
+    }
+
+    /** @return the estimated size of all cached pipelines */
+    public long getBytes() {
+        long bytes = 0;
+        for (Entry e : entries.values()) {
+            bytes += e.size();
+        }
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the bytes the current thread allocated so far. The difference
+     *         before and after loading a pipeline (or engine) bounds what it
+     *         retains (it includes the garbage made while loading), for when
+     *         {@link org.sherlok.utils.HeapSize} can not estimate it. Falls
+     *         back to the used heap where the JVM does not support it.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory
+                .getThreadMXBean();
+        if (threads instanceof ThreadMXBean) {
+            ThreadMXBean allocations = (ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported()
+                    && allocations.isThreadAllocatedMemoryEnabled()) {
+                return allocations.getThreadAllocatedBytes(Thread
+                        .currentThread().getId());
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
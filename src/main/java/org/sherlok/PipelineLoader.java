@@ -15,13 +15,9 @@
  */
 package org.sherlok;
 
-import static org.apache.commons.io.FileUtils.copyFile;
-import static org.apache.commons.io.FilenameUtils.getExtension;
 import static org.apache.commons.lang3.StringUtils.join;
 import static org.sherlok.mappings.Def.createId;
-import static org.sherlok.mappings.Def.getName;
 import static org.sherlok.mappings.Def.getVersion;
-import static org.sherlok.utils.AetherResolver.LOCAL_REPO_PATH;
 import static org.sherlok.utils.CheckThat.validateArgument;
 import static org.sherlok.utils.CheckThat.validateNotNull;
 import static org.sherlok.utils.Create.list;
@@ -30,19 +26,23 @@ import static org.sherlok.utils.Create.set;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -58,18 +58,24 @@ import org.eclipse.aether.collection.CollectResult;
 import org.eclipse.aether.collection.DependencyCollectionException;
 import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.repository.RemoteRepository;
-import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.util.artifact.ArtifactIdUtils;
 import org.eclipse.aether.util.graph.visitor.PreorderNodeListGenerator;
 import org.sherlok.mappings.BundleDef;
 import org.sherlok.mappings.BundleDef.EngineDef;
 import org.sherlok.mappings.PipelineDef;
+import org.sherlok.mappings.PipelineDef.PipelineTest;
 import org.sherlok.mappings.SherlokException;
 import org.sherlok.utils.AetherResolver;
 import org.sherlok.utils.MavenPom;
+import org.sherlok.utils.SherlokTests;
 import org.sherlok.utils.Strings;
 import org.slf4j.Logger;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import freemarker.template.TemplateException;
 
 /**
@@ -82,12 +88,37 @@ public class PipelineLoader {
 
     private final Controller controller;
     /** caches resolved {@link UimaPipeline}s so can be reused for annotating */
-    private Map<String, UimaPipeline> uimaPipelinesCache = map();
+    private final PipelineCache uimaPipelinesCache = PipelineCache
+            .createDefault();
+    /** pipelines being reloaded in the background, see {@link #reload(String)} */
+    private final ConcurrentMap<String, Object> swappingPipelines = new ConcurrentHashMap<String, Object>();
+    /** Reloads pipelines in the background */
+    private static final ExecutorService SWAP_EXECUTOR = Executors
+            .newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("sherlok-swap-%d").build());
+    /** Whether reloaded pipelines must pass their tests to be swapped in */
+    private static boolean swapTests = false;
+
+    /** pipelines being loaded, shared by all threads requesting them */
+    private final ConcurrentMap<String, SettableFuture<UimaPipeline>> loadingPipelines = new ConcurrentHashMap<String, SettableFuture<UimaPipeline>>();
+    /** caches annotation results of these pipelines */
+    private final AnnotationCache annotationCache = AnnotationCache
+            .createDefault();
 
     public PipelineLoader(Controller controller) {
         this.controller = controller;
     }
 
+    /**
+     * @param runTests
+     *            whether reloaded pipelines must pass their
+     *            {@link PipelineDef#getTests()} before replacing the previous
+     *            ones, see {@link #reload(String)}
+     */
+    public static void setSwapTests(boolean runTests) {
+        swapTests = runTests;
+    }
+
     /**
      * Checks if such a {@link PipelineDef} exists, and returns the
      * corresponding {@link UimaPipeline} (if it is in cache) or else
@@ -95,8 +126,9 @@ public class PipelineLoader {
      * Instantiation involves resolving the pipeline engines and the engines
      * bundles, then loading the bundles Maven artifacts into the current
      * classpath. <br/>
-     * This method is synchronized, so that no two threads can access it during
-     * initialization. TODO release the lock earlier
+     * Cached pipelines are returned without locking. Concurrent requests for
+     * the same pipeline share a single instantiation, while different
+     * pipelines get instantiated in parallel.
      * 
      * @param pipelineName
      * @param version
@@ -105,22 +137,16 @@ public class PipelineLoader {
      *            {@link Strings#compareNatural(String, String)}
      * @return the {@link UimaPipeline}
      */
-    public synchronized UimaPipeline resolvePipeline(String pipelineName,
+    public UimaPipeline resolvePipeline(String pipelineName,
             final String originalVersion) throws SherlokException {
 
         String version = originalVersion;
         // 0. resolve version (fallback) if version=null
         if (version == null || version.equals("null")) {
-            // init with a lexicographically lowsest value
-            String highestVersion = "0000000000000000000000000000000";
-            // find highest version
-            for (String pId : controller.listPipelineDefNames()) {
-                if (getName(pId).equals(pipelineName)) {
-                    String pVersion = getVersion(pId);
-                    if (Strings.compareNatural(pVersion, highestVersion) > 0) {
-                        highestVersion = pVersion;
-                    }
-                }
+            String highestVersion = controller
+                    .getLatestPipelineVersion(pipelineName);
+            if (highestVersion == null) { // no such pipeline, fails below
+                highestVersion = "0000000000000000000000000000000";
             }
             LOG.trace(
                     "resolved pipeline version to '{}' (was previousely '{}')",
@@ -130,26 +156,134 @@ public class PipelineLoader {
         String pipelineId = createId(pipelineName, version);
 
         // 1. get pipeline from cache if available
-        if (uimaPipelinesCache.containsKey(pipelineId)) {
+        UimaPipeline cached = uimaPipelinesCache.get(pipelineId);
+        if (cached != null) {
             LOG.trace("pipeline '{}' found in cache", pipelineId);
-            return uimaPipelinesCache.get(pipelineId);
+            return cached;
+        }
 
+        // 2. else, load it (or wait for the thread already loading it)
+        SettableFuture<UimaPipeline> load = SettableFuture.create();
+        SettableFuture<UimaPipeline> loading = loadingPipelines.putIfAbsent(
+                pipelineId, load);
+        if (loading == null) {
+            loading = load;
+            try {
+                load.set(loadAndCache(pipelineId, load, createId(pipelineName,
+                        originalVersion)));
+            } catch (Throwable t) {
+                load.setException(t);
+            } finally {
+                loadingPipelines.remove(pipelineId, load);
+            }
         } else {
-            // 2. else, load it from pipeline def
-            PipelineDef pipelineDef = controller.getPipelineDef(pipelineId);
-            if (pipelineDef == null) {
-                throw new SherlokException("no Pipeline with this id",
-                        createId(pipelineName, originalVersion))
-                                .setRemedy("Version resolves to '" + version
-                                        + "'; Available pipelines ids: '"
-                                        + join(controller
-                                                .listPipelineDefNames(), "', '")
-                                        + "'.");
+            LOG.trace("waiting for pipeline '{}' to load", pipelineId);
+        }
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SherlokException(
+                    "interrupted while waiting for pipeline to load",
+                    pipelineId);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(),
+                    SherlokException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Loads this pipeline and caches it, unless it was removed from the cache
+     * meanwhile (e.g. updated), in which case it is returned closed.
+     */
+    private UimaPipeline loadAndCache(String pipelineId,
+            SettableFuture<UimaPipeline> load, String requestedId)
+            throws SherlokException {
+
+        UimaPipeline cached = uimaPipelinesCache.get(pipelineId);
+        if (cached != null) { // loaded by another thread, just before
+            return cached;
+        }
+        PipelineDef pipelineDef = controller.getPipelineDef(pipelineId);
+        if (pipelineDef == null) {
+            throw new SherlokException("no Pipeline with this id", requestedId)
+                    .setRemedy("Version resolves to '" + getVersion(pipelineId)
+                            + "'; Available pipelines ids: '"
+                            + join(controller.listPipelineDefNames(), "', '")
+                            + "'.");
+        }
+
+        UimaPipeline uimaPipeline = load(pipelineDef);
+        long size = uimaPipeline.getBytes();
+        LOG.debug("loaded pipeline '{}', using ~{} bytes (+{} shared)",
+                new Object[] { pipelineId, size,
+                        uimaPipeline.getSharedEngineBytes() });
+        uimaPipeline.setAnnotationCache(annotationCache);
+
+        synchronized (this) {
+            if (loadingPipelines.get(pipelineId) == load) {
+                uimaPipelinesCache.put(pipelineId, uimaPipeline, size);
+            } else {
+                LOG.debug("pipeline '{}' was removed while loading", pipelineId);
+                uimaPipeline.close(); // requests will get a 503, then reload
             }
-            UimaPipeline uimaPipeline = load(pipelineDef);
-            uimaPipelinesCache.put(pipelineId, uimaPipeline);
-            return uimaPipeline;
         }
+        return uimaPipeline;
+    }
+
+    /**
+     * Loads (in parallel) and caches the pipelines flagged
+     * {@link PipelineDef#isLoadOnStartup()}, then warms them up (see
+     * {@link UimaPipeline#warmup()}). Failures are logged, so that one broken
+     * pipeline does not prevent the server from starting.
+     * 
+     * @return the ids of the pipelines that were loaded
+     */
+    public List<String> preload() throws SherlokException {
+        List<PipelineDef> pipelineDefs = list();
+        for (PipelineDef pipelineDef : controller.listPipelines()) {
+            if (pipelineDef.isLoadOnStartup()) {
+                pipelineDefs.add(pipelineDef);
+            }
+        }
+        if (pipelineDefs.isEmpty()) {
+            return list();
+        }
+        LOG.info("preloading {} pipeline(s)", pipelineDefs.size());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(pipelineDefs.size(), Runtime.getRuntime()
+                        .availableProcessors()), new ThreadFactoryBuilder()
+                        .setDaemon(true).setNameFormat("sherlok-preload-%d")
+                        .build());
+        Map<String, Future<Void>> loads = new LinkedHashMap<String, Future<Void>>();
+        for (final PipelineDef pipelineDef : pipelineDefs) {
+            loads.put(pipelineDef.getId(), executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    resolvePipeline(pipelineDef.getName(),
+                            pipelineDef.getVersion()).warmup();
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        List<String> loaded = list();
+        for (Entry<String, Future<Void>> load : loads.entrySet()) {
+            try {
+                load.getValue().get();
+                loaded.add(load.getKey());
+            } catch (ExecutionException e) {
+                LOG.error("could not preload pipeline '" + load.getKey() + "'",
+                        e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SherlokException("interrupted while preloading");
+            }
+        }
+        LOG.info("preloaded pipeline(s) {}", loaded);
+        return loaded;
     }
 
     /** Just loads that pipeline. No caching. */
@@ -176,20 +310,23 @@ public class PipelineLoader {
             bundleDefsToResolve.add(b);
         }
 
-        // 4. solve (download) bundle dependencies
+        // 4. solve (download) bundle dependencies, and load them
+        ClassLoader classLoader;
         try {
-            solveDependencies(pipelineDef.getName(), pipelineDef.getVersion(),
-                    bundleDefsToResolve, engineDefsUsedInP.size());
+            classLoader = BundleClassLoaders.acquire(bundleDefsToResolve,
+                    solveDependencies(pipelineDef.getName(),
+                            pipelineDef.getVersion(), bundleDefsToResolve,
+                            engineDefsUsedInP.size()));
         } catch (ArtifactResolutionException e) {
-            throw new SherlokException(
+            throw offlineRemedy(new SherlokException(
                     "Failed to resolve solve pipeline dependencies")
                             .setObject(pipelineDef.getId())
-                            .setDetails(e.getMessage());
+                            .setDetails(e.getMessage()));
         } catch (DependencyCollectionException e) {
-            throw new SherlokException(
+            throw offlineRemedy(new SherlokException(
                     "Failed to collect pipeline dependencies")
                             .setObject(pipelineDef.getId())
-                            .setDetails(e.getMessage());
+                            .setDetails(e.getMessage()));
         } catch (Exception e) {
             throw new RuntimeException(e); // should not happen
         }
@@ -197,7 +334,8 @@ public class PipelineLoader {
         // 5. create UimaPipeline
         UimaPipeline uimaPipeline;
         try {
-            uimaPipeline = new UimaPipeline(pipelineDef, engineDefsUsedInP);
+            uimaPipeline = new UimaPipeline(pipelineDef, engineDefsUsedInP,
+                    classLoader); // releases the classloader when closed
         } catch (IOException | UIMAException e) {// other SherlokErrors catched
             LOG.warn("could not initialize UIMA pipeline", e);
 
@@ -216,29 +354,66 @@ public class PipelineLoader {
         return uimaPipeline;
     }
 
+    /** Explains missing artifacts, when resolving offline */
+    private static SherlokException offlineRemedy(SherlokException e) {
+        if (AetherResolver.isOffline()) {
+            e.setRemedy("offline mode: some artifacts are neither in '"
+                    + AetherResolver.LOCAL_REPO_PATH + "' nor in '"
+                    + AetherResolver.localRepo
+                    + "'. Install them there, or restart without -offline "
+                    + "(and not in sealed mode) to download them");
+        }
+        return e;
+    }
+
     public void cleanLocalRepo() throws IOException {
         FileUtils.deleteDirectory(new File(AetherResolver.LOCAL_REPO_PATH));
     }
 
     /**
-     * Resolves a maven dependency tree, download the dependencies and add them
-     * (jars) to the classpath
+     * Resolves a maven dependency tree and download the dependencies. Skips
+     * resolution if these bundles were resolved before (see
+     * {@link DependencyLockfile}).
+     * 
+     * @return the resolved jars, to load with {@link BundleClassLoaders}
      */
-    static void solveDependencies(String pipelineName, String version,
+    static List<File> solveDependencies(String pipelineName, String version,
             Set<BundleDef> bundleDefs, int nrEngines)
                     throws IOException, TemplateException,
                     ArtifactResolutionException, DependencyCollectionException,
                     IOException, SherlokException {
 
+        List<File> jars = DependencyLockfile.read(bundleDefs);
+        if (jars != null) {
+            LOG.trace("* using lockfile for pipeline '{}'", pipelineName);
+        } else {
+            jars = list(resolveDependencies(pipelineName, version,
+                    bundleDefs, nrEngines).values());
+        }
+
+        return jars;
+    }
+
+    /**
+     * Resolves a maven dependency tree and downloads the dependencies, then
+     * writes their {@link DependencyLockfile}.
+     * 
+     * @return key: the coordinates of each resolved artifact, value: its file
+     */
+    private static Map<String, File> resolveDependencies(String pipelineName,
+            String version, Set<BundleDef> bundleDefs, int nrEngines)
+                    throws IOException, TemplateException,
+                    ArtifactResolutionException, DependencyCollectionException,
+                    SherlokException {
+
         // create fake POM that contains all bundle deps
         String fakePom = MavenPom.writePom(bundleDefs, pipelineName, version);
         Artifact rootArtifact = new DefaultArtifact(fakePom);
         LOG.trace("* rootArtifact: '{}'", rootArtifact);
 
-        // repositorysystem, with our remote repository urls
-        RepositorySystem system = AetherResolver.newRepositorySystem();
-        RepositorySystemSession session = AetherResolver
-                .newRepositorySystemSession(system, LOCAL_REPO_PATH);
+        // repositorysystem (shared), with our remote repository urls
+        RepositorySystem system = AetherResolver.getRepositorySystem();
+        RepositorySystemSession session = AetherResolver.getSession();
         Map<String, String> repositoriesDefs = map();
         for (BundleDef b : bundleDefs) {
             for (Entry<String, String> id_url : b.getRepositories()
@@ -266,98 +441,20 @@ public class PipelineLoader {
                     "There must have been an error resolving dependencies");
         }
 
-        // now do the real fetching, and add jars to classpath
-        for (Dependency dependency : dependencies) {
-            Artifact resolvedArtifact = system.resolveArtifact(session,
-                    new ArtifactRequest(dependency.getArtifact(), repos, ""))
-                    .getArtifact();
-            File jar = resolvedArtifact.getFile();
-
-            // add downloaded artifact to local ~/.m2/repository, if possible
-            // FIXME test that downloaded artifact to local ~/.m2/repository
-            if (AetherResolver.localRepo.exists()
-                    && AetherResolver.localRepo.canWrite()) {
-                File sherlokRepo = new File(AetherResolver.LOCAL_REPO_PATH);
-                String canonicalPath = jar.getCanonicalPath();
-                String relative = canonicalPath.substring(
-                        sherlokRepo.getAbsolutePath().length(),
-                        canonicalPath.length());
-                File localRepoFile = new File(AetherResolver.localRepo,
-                        relative);
-                if (!localRepoFile.exists()) {
-                    LOG.trace("artifact '{}' added to local maven repo",
-                            jar.getName());
-                    copyFile(jar, localRepoFile);
-                }
-            }
-
-            // add this jar to the classpath (if it has not been added before)
-            if (!isAlreadyOnClasspath(jar)) {
-                ClassPathHack.addFile(jar);
-                LOG.trace("* resolved artifact '{}', added to classpath: '{}'",
-                        resolvedArtifact, jar.getAbsolutePath());
-            } else {
-                LOG.trace("* resolved artifact '{}', already on classpath",
-                        resolvedArtifact);
-            }
-        }
-    }
-
-    /**
-     * Samples classes from that jar, to see if they are already on the
-     * classpath. If some classes are already, then assume this jar was already
-     * on the classpath.<br>
-     * The goal is to avoid overloading the classpath...
-     */
-    private static boolean isAlreadyOnClasspath(File jar) throws IOException {
-
-        if (!getExtension(jar.getName()).equals("jar")) { // filter poms
-            return false;
-
-        } else {
-            // LOG.trace("jar: " + jar.getName());
-            double exists = 0, new_ = 0;
-            for (String className : getClasses(jar)) {
-                try {
-                    Class.forName(className);
-                    exists++;
-                } catch (Throwable e) {
-                    new_++;
-                    // LOG.trace("new::" + className);
-                }
-                if (exists + new_ > 20) {// we have sampled enough classes
-                    break;
-                }
+        // now do the real fetching (in parallel)
+        Map<String, File> resolved = new LinkedHashMap<String, File>();
+        for (Artifact resolvedArtifact : AetherResolver.resolve(dependencies,
+                repos)) {
+            LOG.trace("* resolved artifact '{}'", resolvedArtifact);
+            if (!ArtifactIdUtils.equalsId(rootArtifact, resolvedArtifact)) {
+                // the fake POM is specific to this pipeline, do not lock it
+                resolved.put(resolvedArtifact.toString(),
+                        resolvedArtifact.getFile());
             }
-            LOG.trace("new {} exists {}", new_, exists);
-            if (exists > 0)
-                return true;
-            else
-                return false;
         }
-    }
 
-    /** Get all classes from this jar file */
-    private static List<String> getClasses(File jar) throws IOException {
-        List<String> classNames = new ArrayList<String>();
-        ZipInputStream zip = new ZipInputStream(new FileInputStream(jar));
-        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip
-                .getNextEntry()) {
-            if (entry.getName().endsWith(".class") && !entry.isDirectory()) {
-                StringBuilder className = new StringBuilder();
-                for (String part : entry.getName().split("/")) {
-                    if (className.length() != 0)
-                        className.append(".");
-                    className.append(part);
-                    if (part.endsWith(".class"))
-                        className.setLength(
-                                className.length() - ".class".length());
-                }
-                classNames.add(className.toString());
-            }
-        }
-        zip.close();
-        return classNames;
+        DependencyLockfile.write(bundleDefs, resolved);
+        return resolved;
     }
 
     /** Reflection to bypass encapsulation. Yeah... */
@@ -387,13 +484,101 @@ public class PipelineLoader {
         }
     }
 
-    /** clears (flushes) that pipeline from the cache */
-    public void removeFromCache(String pipelineId) {
-        uimaPipelinesCache.remove(pipelineId);
+    /**
+     * Reloads this pipeline (e.g. after its definition was updated) without
+     * downtime: the new instance is loaded in the background while the cached
+     * one keeps serving requests, then swapped in. The previous instance is
+     * closed once its running requests are done. If the new one fails to load
+     * (or to pass its tests, see {@link #setSwapTests(boolean)}), the previous
+     * one is kept. Pipelines that are not cached are just removed.
+     */
+    public void reload(final String pipelineId) {
+        if (!uimaPipelinesCache.contains(pipelineId)) {
+            removeFromCache(pipelineId);
+            return;
+        }
+        final Object swap = new Object();
+        swappingPipelines.put(pipelineId, swap); // supersedes earlier reloads
+        SWAP_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    swap(pipelineId, swap);
+                } catch (Throwable t) {
+                    LOG.error("could not reload pipeline '" + pipelineId
+                            + "', keeping the previous one", t);
+                } finally {
+                    swappingPipelines.remove(pipelineId, swap);
+                }
+            }
+        });
+    }
+
+    /** {@link #reload(String)}s all cached pipelines */
+    public void reloadAll() {
+        annotationCache.invalidateAll(); // also of pipelines not loaded
+        for (String pipelineId : uimaPipelinesCache.getIds()) {
+            reload(pipelineId);
+        }
+    }
+
+    private void swap(String pipelineId, Object swap) throws Exception {
+        PipelineDef pipelineDef = controller.getPipelineDef(pipelineId);
+        if (pipelineDef == null) { // deleted meanwhile
+            synchronized (this) {
+                if (swappingPipelines.get(pipelineId) == swap) {
+                    removeFromCache(pipelineId);
+                }
+            }
+            return;
+        }
+
+        UimaPipeline uimaPipeline = load(pipelineDef);
+        long size = uimaPipeline.getBytes();
+        try {
+            if (swapTests) {
+                for (PipelineTest test : pipelineDef.getTests()) {
+                    SherlokTests.assertEquals(test.getExpected(),
+                            uimaPipeline.annotate(test.getInput()),
+                            test.getComparison());
+                }
+            }
+        } catch (Exception e) {
+            uimaPipeline.close();
+            throw e;
+        }
+        uimaPipeline.setAnnotationCache(annotationCache);
+
+        synchronized (this) {
+            if (swappingPipelines.get(pipelineId) == swap) {
+                // closes the previous one, once drained
+                uimaPipelinesCache.put(pipelineId, uimaPipeline, size);
+                annotationCache.invalidate(pipelineId);
+                LOG.info("reloaded pipeline '{}'", pipelineId);
+            } else { // superseded, or removed meanwhile
+                uimaPipeline.close();
+            }
+        }
+    }
+
+    /** @return the cache of loaded pipelines (e.g. for their footprint) */
+    public PipelineCache getPipelineCache() {
+        return uimaPipelinesCache;
+    }
+
+    /** clears (flushes) that pipeline and its annotations from the cache */
+    public synchronized void removeFromCache(String pipelineId) {
+        loadingPipelines.remove(pipelineId); // do not cache it once loaded
+        swappingPipelines.remove(pipelineId);
+        uimaPipelinesCache.remove(pipelineId); // closes it
+        annotationCache.invalidate(pipelineId);
     }
 
-    /** clears (flushes) all cached pipelines */
-    public void clearCache() {
-        uimaPipelinesCache.clear();
+    /** clears (flushes) all cached pipelines and annotations */
+    public synchronized void clearCache() {
+        loadingPipelines.clear();
+        swappingPipelines.clear();
+        uimaPipelinesCache.clear(); // closes them
+        annotationCache.invalidateAll();
     }
 }
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.sherlok.FileBased.RUNTIME_DIR_PATH;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+import org.slf4j.Logger;
+import org.xml.sax.SAXException;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches on disk what gets generated from the pipelines' Ruta scripts, so
+ * that reloading a pipeline whose script and engines did not change (e.g.
+ * after a restart, or after cleaning the pipelines) skips regenerating it:
+ * the types DECLAREd in the scripts, and the generated script and engine
+ * descriptor files. Entries are keyed by a hash of what they are generated
+ * from (e.g. the script, after its config variables are resolved), so they
+ * never get stale.
+ *
+ * @author renaud@apache.org
+ */
+public class ScriptCache {
+    private static final Logger LOG = getLogger(ScriptCache.class);
+
+    public static final String SCRIPT_CACHE_PATH = RUNTIME_DIR_PATH
+            + "script_cache/";
+
+    static String hash(String source) {
+        return Hashing.sha1().hashString(source, UTF_8).toString();
+    }
+
+    /**
+     * @param script
+     *            the (generated) Ruta script
+     * @return the types declared in this script, or null if not cached
+     */
+    static TypeSystemDescription getDeclaredTypes(String script) {
+        File f = new File(SCRIPT_CACHE_PATH, hash(script) + ".types.xml");
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            return UIMAFramework.getXMLParser().parseTypeSystemDescription(
+                    new XMLInputSource(f));
+        } catch (InvalidXMLException | IOException e) {
+            LOG.warn("could not read cached types of script: {}",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /** Caches the types declared in this script */
+    static void putDeclaredTypes(String script, TypeSystemDescription types) {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try {
+            types.toXML(xml);
+            write(new File(SCRIPT_CACHE_PATH, hash(script) + ".types.xml"),
+                    xml.toByteArray());
+        } catch (SAXException | IOException e) {
+            LOG.warn("could not cache types of script: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @param generated
+     *            a generated file
+     * @param source
+     *            what this file gets generated from
+     * @return whether this file exists, and was generated from this source
+     *         (see {@link #setUpToDate(File, String)})
+     */
+    static boolean isUpToDate(File generated, String source) {
+        File hashFile = hashFile(generated);
+        if (!generated.exists() || !hashFile.exists()) {
+            return false;
+        }
+        try {
+            return hash(source).equals(
+                    new String(Files.readAllBytes(hashFile.toPath()), UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Records that this file was (just) generated from this source */
+    static void setUpToDate(File generated, String source) {
+        try {
+            write(hashFile(generated), hash(source).getBytes(UTF_8));
+        } catch (IOException e) {
+            LOG.warn("could not cache hash of '{}': {}", generated,
+                    e.getMessage());
+        }
+    }
+
+    private static File hashFile(File generated) {
+        return new File(SCRIPT_CACHE_PATH, generated.getName() + ".sha1");
+    }
+
+    /** Writes atomically, concurrent readers never see partial files */
+    static void write(File f, byte[] content) throws IOException {
+        f.getParentFile().mkdirs();
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        Files.write(tmp.toPath(), content);
+        Files.move(tmp.toPath(), f.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+}
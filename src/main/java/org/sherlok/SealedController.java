@@ -23,6 +23,7 @@ import java.util.Set;
 
 import javax.servlet.http.Part;
 
+import org.sherlok.mappings.Def;
 import org.sherlok.mappings.PipelineDef;
 import org.sherlok.mappings.SherlokException;
 
@@ -56,7 +57,7 @@ public class SealedController extends Controller {
     // LIST all /////////////////////////////////////////////////////////////
 
     Collection<PipelineDef> listPipelines() throws SherlokException {
-        for (PipelineDef p : pipelineDefs.values()) {
+        for (PipelineDef p : registry.pipelineDefs.values()) {
             if (p.getId().equals(pipelineId)) {
                 return list(p);
             }
@@ -74,13 +75,20 @@ public class SealedController extends Controller {
 
     PipelineDef getPipelineDef(String pipelineId) throws SherlokException {
         if (pipelineId.equals(pipelineId)) {
-            return pipelineDefs.get(pipelineId);
+            return registry.pipelineDefs.get(pipelineId);
         } else {
             throw new SherlokException(getErrorMsg(),
                     "GET pipeline with id " + pipelineId);
         }
     }
 
+    String getLatestPipelineVersion(String pipelineName) {
+        if (pipelineId != null && Def.getName(pipelineId).equals(pipelineName)) {
+            return Def.getVersion(pipelineId);
+        }
+        return null;
+    }
+
     // PUT /////////////////////////////////////////////////////////////
     String putBundle(String bundleStr) throws SherlokException {
         throw new SherlokException(getErrorMsg(), "PUT Bundle");
@@ -18,6 +18,8 @@ package org.sherlok;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.io.Files.createTempDir;
 import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sherlok.mappings.BinaryCasDecoder.UIMA_BINARY;
 import static org.sherlok.mappings.Def.createId;
 import static org.sherlok.utils.AetherResolver.LOCAL_REPO_PATH;
 import static org.sherlok.utils.CheckThat.checkOnlyAlphanumDotUnderscore;
@@ -33,10 +35,26 @@ import static spark.Spark.post;
 import static spark.Spark.setIpAddress;
 import static spark.Spark.setPort;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.http.Part;
@@ -44,13 +62,18 @@ import javax.servlet.http.Part;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.sherlok.JobManager.Job;
 import org.sherlok.config.ConfigVariableFactory;
 import org.sherlok.config.ConfigVariableFactory.ConfigVariableCleaner;
+import org.sherlok.mappings.BatchResult;
+import org.sherlok.mappings.BinaryCasDecoder;
 import org.sherlok.mappings.BundleDef;
 import org.sherlok.mappings.JsonAnnotation;
 import org.sherlok.mappings.PipelineDef;
 import org.sherlok.mappings.PipelineDef.PipelineTest;
+import org.sherlok.mappings.ServerBusyException;
 import org.sherlok.mappings.SherlokException;
+import org.sherlok.utils.AetherResolver;
 import org.sherlok.utils.LogMessagesCache;
 import org.sherlok.utils.SherlokTests;
 import org.slf4j.Logger;
@@ -63,6 +86,9 @@ import spark.Route;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * REST-endpoint for Sherlok
@@ -74,6 +100,15 @@ public class SherlokServer {
 
     /** Route for annotating */
     public static final String ANNOTATE = "annotate";
+    /** Sub-route for annotating many documents at once */
+    public static final String BATCH = "batch";
+    /** Route for streaming annotation of newline-delimited JSON documents */
+    public static final String STREAM = "stream";
+    /** Sub-route for the type system of a pipeline's binary output */
+    public static final String TYPE_SYSTEM = "typesystem";
+    /** Route for asynchronous annotation jobs, and their result */
+    public static final String JOBS = "jobs";
+    public static final String RESULT = "result";
     /** Route for testing */
     public static final String TEST = "test";
     /** Route and path for pipelines */
@@ -82,18 +117,24 @@ public class SherlokServer {
     public static final String BUNDLES = "bundles";
     /** Route and path for Ruta resources */
     public static final String RUTA_RESOURCES = "resources";
+    /** Route for the loaded pipelines and their (estimated) footprint */
+    public static final String RUNTIME = "runtime";
     /** Route and path for cleaning runtime resources */
     public static final String CLEAN = "clean";
     public static final String REMOTE_RESOURCES = "remote_resources";
     public static final String LOGS = "logs";
 
     public static final int STATUS_OK = 200;
+    public static final int STATUS_ACCEPTED = 202;
     public static final int STATUS_INVALID = 400;
     public static final int STATUS_MISSING = 404;
     public static final int STATUS_SERVER_ERROR = 500;
+    public static final int STATUS_UNAVAILABLE = 503;
     public static final String STATUS = "status";
 
     public static final String JSON = "application/json";
+    /** Newline-delimited JSON, see {@link #STREAM} */
+    public static final String NDJSON = "application/x-ndjson";
 
     /** Location for temp uploaded files */
     protected static final MultipartConfigElement RUTA_RESOURCES_UPLOAD_CONFIG = new MultipartConfigElement(
@@ -117,6 +158,25 @@ public class SherlokServer {
     private static final List<String> PUBLIC_WHITELIST = //
     list(".DS_Store", "index.html");
 
+    /** Max nr of documents being annotated at once, per {@link #STREAM} */
+    static final int MAX_STREAM_IN_FLIGHT = 64;
+    /** Compact JSON (on a single line), for {@link #STREAM} responses */
+    private static final ObjectMapper NDJSON_MAPPER = new ObjectMapper();
+
+    /** Max nr of documents in one {@link #BATCH} request */
+    static final int MAX_BATCH_SIZE = 10000;
+    /**
+     * Annotates the documents of {@link #BATCH} and {@link #STREAM} requests
+     * in parallel. Each request has at most as many documents in flight as
+     * its pipeline has engine replicas, the others wait for their turn
+     * (instead of timing out while waiting for engines).
+     */
+    private static final ExecutorService BATCH_EXECUTOR = Executors
+            .newFixedThreadPool(
+                    2 * Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("sherlok-batch-%d").build());
+
     /** Called at server startup (main). Registers all {@link Route}s */
     public static void init(int port, String ip, String masterUrl,
             String sealed) throws SherlokException {
@@ -134,6 +194,9 @@ public class SherlokServer {
             controller = new Controller().load();
         }
         final PipelineLoader pipelineLoader = new PipelineLoader(controller);
+        // before any route is registered, so that the server only starts
+        // listening once these pipelines are ready
+        pipelineLoader.preload();
 
         setPort(port);
         setIpAddress(ip);
@@ -143,18 +206,37 @@ public class SherlokServer {
 
         // ROUTES: ANNOTATE & TEST
         // ////////////////////////////////////////////////////////////////////////////
-        get(new Route("/" + ANNOTATE + "/:name", JSON) {
+        // no accept type, since JSON or binary (see annotateRequest)
+        get(new Route("/" + ANNOTATE + "/:name") {
             @Override
             public Object handle(Request req, Response resp) {
                 return annotateRequest(req, resp, pipelineLoader);
             }
         });
-        post(new Route("/" + ANNOTATE + "/:name", JSON) {// same, but POST
+        post(new Route("/" + ANNOTATE + "/:name") {// same, but POST
             @Override
             public Object handle(Request req, Response resp) {
                 return annotateRequest(req, resp, pipelineLoader);
             }
         });
+        post(new JsonRoute("/" + ANNOTATE + "/:name/" + BATCH) {
+            @Override
+            public Object handle(Request req, Response resp) {
+                return annotateBatchRequest(req, resp, pipelineLoader);
+            }
+        });
+        post(new Route("/" + ANNOTATE + "/:name/" + STREAM) {
+            @Override
+            public Object handle(Request req, Response resp) {
+                return annotateStreamRequest(req, resp, pipelineLoader);
+            }
+        });
+        get(new Route("/" + ANNOTATE + "/:name/" + TYPE_SYSTEM) {
+            @Override
+            public Object handle(Request req, Response resp) {
+                return typeSystemRequest(req, resp, pipelineLoader);
+            }
+        });
 
         /** Testing only, does not store the pipeline */
         post(new JsonRoute("/" + TEST) {
@@ -164,30 +246,34 @@ public class SherlokServer {
                     // parse pipeline
                     PipelineDef pipeline = FileBased.parsePipeline(req.body());
                     UimaPipeline uimaPipeline = pipelineLoader.load(pipeline);
-
-                    boolean isPassed = true;
-                    Map<Integer, Object> passed = map(), failed = map();
-
-                    for (int i = 0; i < pipeline.getTests().size(); i++) {
-                        PipelineTest test = pipeline.getTests().get(i);
-                        try {
-                            String systemStr = uimaPipeline
-                                    .annotate(test.getInput());
-                            Map<String, List<JsonAnnotation>> system = SherlokTests
-                                    .assertEquals(test.getExpected(), systemStr,
-                                            test.getComparison());
-                            passed.put(i, map("expected", test.getExpected(),
-                                    "system", system));
-                        } catch (SherlokException e) {
-                            isPassed = false;
-                            failed.put(i, e.setWhen(test.getInput()));
+                    try {
+                        boolean isPassed = true;
+                        Map<Integer, Object> passed = map(), failed = map();
+
+                        for (int i = 0; i < pipeline.getTests().size(); i++) {
+                            PipelineTest test = pipeline.getTests().get(i);
+                            try {
+                                String systemStr = uimaPipeline
+                                        .annotate(test.getInput());
+                                Map<String, List<JsonAnnotation>> system = SherlokTests
+                                        .assertEquals(test.getExpected(),
+                                                systemStr, test.getComparison());
+                                passed.put(i, map("expected",
+                                        test.getExpected(), "system", system));
+                            } catch (SherlokException e) {
+                                isPassed = false;
+                                failed.put(i, e.setWhen(test.getInput()));
+                            }
                         }
-                    }
-                    if (isPassed) {
-                        return map("passed", passed);
-                    } else {
-                        resp.status(STATUS_INVALID);
-                        return map("passed", passed, "failed", failed);
+                        if (isPassed) {
+                            return map("passed", passed);
+                        } else {
+                            resp.status(STATUS_INVALID);
+                            return map("passed", passed, "failed",
+                                    failed);
+                        }
+                    } finally { // not cached, releases its shared engines
+                        uimaPipeline.close();
                     }
 
                 } catch (SherlokException se) {
@@ -235,6 +321,80 @@ public class SherlokServer {
             }
         });
 
+        // ROUTES: RUNTIME; curl http://localhost:9600/runtime
+        // ////////////////////////////////////////////////////////////////////////////
+        get(new JsonRoute("/" + RUNTIME) {
+            @Override
+            public Object handle(Request req, Response resp) {
+                try {
+                    PipelineCache cache = pipelineLoader.getPipelineCache();
+                    return map(PIPELINES, cache.getStats(),
+                            "pipelines_bytes", cache.getBytes(),
+                            "max_pipelines_bytes", cache.getMaxBytes(),
+                            "used_heap_bytes", Runtime.getRuntime()
+                                    .totalMemory()
+                                    - Runtime.getRuntime().freeMemory(),
+                            "max_heap_bytes", Runtime.getRuntime().maxMemory());
+                } catch (Exception e) {
+                    return error(RUNTIME, e, resp);
+                }
+            }
+        });
+
+        // ROUTES: JOBS (asynchronous annotation)
+        // ////////////////////////////////////////////////////////////////////////////
+        final JobManager jobManager = new JobManager(pipelineLoader);
+        post(new JsonRoute("/" + JOBS + "/:pipeline") { // SUBMIT
+            @Override
+            public Object handle(Request req, Response resp) {
+                return submitJobRequest(req, resp, jobManager);
+            }
+        });
+        get(new JsonRoute("/" + JOBS + "/:id") { // STATUS
+            @Override
+            public Object handle(Request req, Response resp) {
+                String id = req.params(":id");
+                Job job = jobManager.get(id);
+                if (job == null) {
+                    resp.status(STATUS_MISSING);
+                    return noSuchJob(id);
+                }
+                return job.toJson();
+            }
+        });
+        get(new Route("/" + JOBS + "/:id/" + RESULT) { // RESULT
+            @Override
+            public Object handle(Request req, Response resp) {
+                String id = req.params(":id");
+                try {
+                    resp.type(JSON);
+                    Job job = jobManager.get(id);
+                    if (job == null) {
+                        resp.status(STATUS_MISSING);
+                        return FileBased.writeAsString(noSuchJob(id));
+                    }
+                    switch (job.getStatus()) {
+                    case done:
+                        if (!jobManager.writeResultAndRemove(job, resp.raw()
+                                .getOutputStream())) { // by another request
+                            resp.status(STATUS_MISSING);
+                            return FileBased.writeAsString(noSuchJob(id));
+                        }
+                        return "";
+                    case failed:
+                        return FileBased.writeAsString(invalid(JOBS + "/"
+                                + id + "/" + RESULT, job.getError(), resp));
+                    default: // not finished yet
+                        resp.status(STATUS_ACCEPTED);
+                        return FileBased.writeAsString(job.toJson());
+                    }
+                } catch (Exception e) {
+                    return error("GET /" + JOBS + "/" + id + "/" + RESULT, e,
+                            resp);
+                }
+            }
+        });
+
         // ROUTES: PIPELINES
         // ////////////////////////////////////////////////////////////////////////////
         get(new JsonRoute("/" + PIPELINES) { // LIST
@@ -275,7 +435,7 @@ public class SherlokServer {
             public Object handle(Request req, Response resp) {
                 try {
                     String newId = controller.putPipeline(req.body());
-                    pipelineLoader.removeFromCache(newId);
+                    pipelineLoader.reload(newId);
                     resp.status(STATUS_OK);
                     resp.type(JSON);
                     return map(STATUS, "created", "pipeline_id", newId);
@@ -464,7 +624,7 @@ public class SherlokServer {
             @Override
             public Object handle(Request req, Response resp) {
                 try {
-                    pipelineLoader.clearCache();
+                    pipelineLoader.reloadAll();
                     return map("status", PIPELINES + " reloaded");
                 } catch (Exception e) {
                     return error(CLEAN + "/" + PIPELINES, e, resp);
@@ -481,7 +641,7 @@ public class SherlokServer {
                         pipelineLoader.cleanLocalRepo();
                     }
                     controller.load();
-                    pipelineLoader.clearCache();
+                    pipelineLoader.reloadAll();
                     return map("status", LOCAL_REPO_PATH + " reloaded");
                 } catch (SherlokException ve) {
                     return invalid(CLEAN + "/" + LOCAL_REPO_PATH, ve, resp);
@@ -512,7 +672,7 @@ public class SherlokServer {
                                     .setObject(type),
                             resp);
                 }
-                pipelineLoader.clearCache();
+                pipelineLoader.reloadAll();
                 resp.status(STATUS_OK);
                 return map("status", "cleaned");
             }
@@ -531,7 +691,7 @@ public class SherlokServer {
                                     "failed to clean some runtime resources"),
                             resp);
                 }
-                pipelineLoader.clearCache();
+                pipelineLoader.reloadAll();
                 resp.status(STATUS_OK);
                 return map("status", "cleaned");
             }
@@ -573,25 +733,39 @@ public class SherlokServer {
         try {
             resp.type(JSON);
             resp.header("Access-Control-Allow-Origin", "*");
+            boolean prettyPrint = "true".equals(req.queryParams("pretty"));
+            String accept = req.headers("Accept");
+            boolean binary = accept != null && accept.contains(UIMA_BINARY);
 
             long start = currentTimeMillis(); // stats
             UimaPipeline pipeline = pipelineLoader.resolvePipeline(pipelineName,
                     version);
-            long resolved = currentTimeMillis(), //
-                    resolve = resolved - start;
-            String json = pipeline.annotate(text);
-            long annotate = currentTimeMillis() - resolved;
 
-            // remove last '}' of json, append some stats
-            StringBuilder sb = new StringBuilder(
-                    json.substring(0, json.length() - 1));
-            sb.append(",\n  \"_stats\" : {\n" //
-                    + "    \"_pipeline_resolution\": " + resolve + ",\n"
-                    + "    \"_annotation\": " + annotate + "\n  }\n}");
+            if (binary) { // compact output for machine clients
+                resp.type(UIMA_BINARY);
+                OutputStream out = new BufferedOutputStream(resp.raw()
+                        .getOutputStream());
+                pipeline.annotateBinary(text, out);
+                return "";
+            }
 
-            return sb.toString();
+            Map<String, Object> stats = map();
+            stats.put("_pipeline_resolution", currentTimeMillis() - start);
+
+            // stream JSON directly to the response, appending some stats
+            Writer out = new BufferedWriter(new OutputStreamWriter(resp.raw()
+                    .getOutputStream(), UTF_8));
+            pipeline.annotate(text, out, prettyPrint,
+                    parseTypes(getRequestParam(req, "types")), stats);
+            return "";
 
         } catch (SherlokException ve) {
+            if (resp.raw().isCommitted()) { // too late to send an error
+                LOG.info("could not finish annotate text, " + ve.getMessage(),
+                        ve);
+                abort(req);
+                return "";
+            }
             Object inv = invalid("annotate text  '" + text + "'", ve, resp);
             try {
                 return FileBased.writeAsString(inv);
@@ -599,10 +773,335 @@ public class SherlokServer {
                 return inv;
             }
         } catch (Exception e) {
+            if (resp.raw().isCommitted()) { // too late to send an error
+                LOG.error("could not finish annotate text", e);
+                abort(req);
+                return "";
+            }
             return error("annotate text '" + text + "'", e, resp);
         }
     }
 
+    /**
+     * Aborts a response whose body was partly sent already (too late to send
+     * an error instead), by closing its connection: clients then see a failed
+     * response, instead of a truncated JSON body.
+     */
+    private static void abort(Request req) {
+        if (req.raw() instanceof org.eclipse.jetty.server.Request) {
+            ((org.eclipse.jetty.server.Request) req.raw()).getHttpChannel()
+                    .getEndPoint().close();
+        }
+    }
+
+    /**
+     * Serves the type system of a pipeline's binary output (as an XML
+     * descriptor), that binary annotation responses only reference by hash
+     * (also sent as its ETag), see {@link BinaryCasDecoder}.
+     */
+    protected static Object typeSystemRequest(Request req, Response resp,
+            PipelineLoader pipelineLoader) {
+        String pipelineName = req.params(":name");
+        String route = ANNOTATE + "/" + pipelineName + "/" + TYPE_SYSTEM;
+        resp.header("Access-Control-Allow-Origin", "*");
+        try {
+            checkOnlyAlphanumDotUnderscore(pipelineName,
+                    "'pipeline' req parameter");
+            UimaPipeline pipeline = pipelineLoader.resolvePipeline(
+                    pipelineName, req.queryParams("version"));
+            byte[] tsdXml = pipeline.getBinaryTypeSystem();
+            resp.type("application/xml");
+            resp.header("ETag", "\"" + BinaryCasDecoder.hash(tsdXml) + "\"");
+            resp.raw().getOutputStream().write(tsdXml);
+            return "";
+        } catch (SherlokException ve) {
+            Object inv = invalid(route, ve, resp);
+            try {
+                return FileBased.writeAsString(inv);
+            } catch (JsonProcessingException e) {
+                return inv;
+            }
+        } catch (Exception e) {
+            return error(route, e, resp);
+        }
+    }
+
+    /**
+     * @param types
+     *            comma-separated annotation types, e.g.
+     *            <code>Sentence,Neuron</code>
+     * @return these types, or null if none
+     */
+    static List<String> parseTypes(String types) {
+        if (types == null) {
+            return null;
+        }
+        List<String> ret = list();
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                ret.add(type.trim());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Queues an annotation job, e.g. for long documents (same parameters as
+     * {@link #annotateRequest(Request, Response, PipelineLoader)}), and
+     * returns its status right away. Its result is fetched later, on
+     * <code>GET /jobs/:id/result</code>.
+     */
+    protected static Object submitJobRequest(Request req, Response resp,
+            JobManager jobManager) {
+        String pipelineName = req.params(":pipeline");
+        String version = getRequestParam(req, "version");
+        String text = getRequestParam(req, "text");
+        try {
+            checkOnlyAlphanumDotUnderscore(pipelineName,
+                    "'pipeline' req parameter");
+            validateNotNull(text, "'text' request parameter");
+            validateArgument(text.length() > 0,
+                    "'text' req parameter should not be empty");
+
+            Job job = jobManager.submit(pipelineName, version, text);
+            resp.status(STATUS_ACCEPTED);
+            return job.toJson();
+        } catch (SherlokException se) {
+            return invalid(JOBS + "/" + pipelineName, se, resp);
+        }
+    }
+
+    private static SherlokException noSuchJob(String id) {
+        return new SherlokException("no job with this id", id)
+                .setRemedy("jobs expire, and are removed once their result "
+                        + "is fetched");
+    }
+
+    /**
+     * Annotates a stream of newline-delimited JSON documents, e.g.
+     * <code>{"id": "d1", "text": "..."}</code> (one per line), and streams
+     * back one result per line (see {@link BatchResult}), as soon as each
+     * document is annotated (so not in input order). Reading and annotating
+     * run concurrently, with at most {@link #MAX_STREAM_IN_FLIGHT} documents
+     * (and no more than the pipeline's replicas) in memory. Documents without
+     * 'id' get their line number.
+     */
+    protected static Object annotateStreamRequest(Request req, Response resp,
+            PipelineLoader pipelineLoader) {
+        String pipelineName = req.params(":name");
+        String route = ANNOTATE + "/" + pipelineName + "/" + STREAM;
+        resp.header("Access-Control-Allow-Origin", "*");
+
+        final UimaPipeline pipeline;
+        try {
+            checkOnlyAlphanumDotUnderscore(pipelineName,
+                    "'pipeline' req parameter");
+            pipeline = pipelineLoader.resolvePipeline(pipelineName,
+                    req.queryParams("version"));
+        } catch (SherlokException ve) {
+            Object inv = invalid(route, ve, resp);
+            try {
+                return FileBased.writeAsString(inv);
+            } catch (JsonProcessingException e) {
+                return inv;
+            }
+        }
+
+        resp.type(NDJSON);
+        final int maxInFlight = Math.min(MAX_STREAM_IN_FLIGHT,
+                pipeline.getReplicas());
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicBoolean disconnected = new AtomicBoolean(false);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(req
+                .raw().getInputStream(), UTF_8))) {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(resp
+                    .raw().getOutputStream(), UTF_8));
+
+            String line;
+            for (int lineNr = 1; (line = in.readLine()) != null
+                    && !disconnected.get(); lineNr++) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final BatchResult result;
+                final String text;
+                try {
+                    JsonNode document = NDJSON_MAPPER.readTree(line);
+                    validateArgument(document != null && document.isObject(),
+                            "document should be a JSON object");
+                    JsonNode id = document.get("id");
+                    result = new BatchResult(id == null ? lineNr : id);
+                    JsonNode textNode = document.get("text");
+                    validateArgument(textNode != null && textNode.isTextual()
+                            && textNode.asText().length() > 0,
+                            "'text' should not be empty");
+                    text = textNode.asText();
+                } catch (IOException | SherlokException e) {
+                    SherlokException se = e instanceof SherlokException ? (SherlokException) e
+                            : new SherlokException("could not parse document")
+                                    .setDetails(e.getMessage());
+                    writeLine(out, new BatchResult(lineNr).setError(se
+                            .setObject("line " + lineNr)), disconnected);
+                    continue;
+                }
+
+                inFlight.acquire(); // bounds memory, and waits for engines
+                BATCH_EXECUTOR.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            result.setResult(pipeline.annotate(text));
+                        } catch (SherlokException se) {
+                            result.setError(se);
+                        } catch (Exception e) {
+                            result.setError(new SherlokException(
+                                    "failed to annotate").setDetails(e
+                                    .toString()));
+                        } finally {
+                            writeLine(out, result, disconnected);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+
+        } catch (IOException e) {
+            LOG.info("could not read stream in " + route + ", "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // wait for the last ones, they still write to the response
+            inFlight.acquireUninterruptibly(maxInFlight);
+        }
+        return "";
+    }
+
+    /** Writes (and flushes) this result as a single JSON line */
+    private static void writeLine(Writer out, BatchResult result,
+            AtomicBoolean disconnected) {
+        synchronized (out) {
+            try {
+                out.write(NDJSON_MAPPER.writeValueAsString(result));
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) { // e.g. client went away
+                disconnected.set(true);
+            }
+        }
+    }
+
+    /**
+     * Annotates a batch of documents, e.g.
+     * <code>{"documents": [{"id": "d1", "text": "..."}, ...]}</code>. The
+     * pipeline is resolved once, then the documents are annotated in parallel
+     * (as many at once as it has replicas). Results come back in input order; a failing document gets an 'error'
+     * instead of failing the whole batch.
+     */
+    protected static Object annotateBatchRequest(Request req, Response resp,
+            PipelineLoader pipelineLoader) {
+        String pipelineName = req.params(":name");
+        String route = ANNOTATE + "/" + pipelineName + "/" + BATCH;
+        resp.type(JSON);
+        resp.header("Access-Control-Allow-Origin", "*");
+
+        // parse and validate documents
+        List<Object> ids = list();
+        List<String> texts = list();
+        String version = req.queryParams("version");
+        try {
+            checkOnlyAlphanumDotUnderscore(pipelineName,
+                    "'pipeline' req parameter");
+            JsonNode body;
+            try {
+                body = new ObjectMapper().readTree(req.body());
+            } catch (Exception e) {
+                throw new SherlokException("could not parse request body")
+                        .setDetails(e.getMessage());
+            }
+            validateArgument(body != null && body.isObject(),
+                    "request body should be a JSON object");
+            if (version == null && body.has("version")) {
+                version = body.get("version").asText();
+            }
+            JsonNode documents = body.get("documents");
+            validateArgument(documents != null && documents.isArray(),
+                    "'documents' should be an array");
+            validateArgument(documents.size() > 0,
+                    "'documents' should not be empty");
+            validateArgument(documents.size() <= MAX_BATCH_SIZE,
+                    "too many 'documents', max allowed " + MAX_BATCH_SIZE);
+            Iterator<JsonNode> it = documents.elements();
+            for (int i = 0; it.hasNext(); i++) {
+                JsonNode document = it.next();
+                JsonNode text = document.get("text");
+                validateArgument(text != null && text.isTextual()
+                        && text.asText().length() > 0,
+                        "'text' of document " + i + " should not be empty");
+                JsonNode id = document.get("id");
+                ids.add(id == null ? i : id);
+                texts.add(text.asText());
+            }
+        } catch (SherlokException ve) {
+            return invalid(route, ve, resp);
+        }
+
+        // annotate
+        try {
+            long start = currentTimeMillis(); // stats
+            final UimaPipeline pipeline = pipelineLoader.resolvePipeline(
+                    pipelineName, version);
+            long resolved = currentTimeMillis(), //
+            resolve = resolved - start;
+
+            final Semaphore inFlight = new Semaphore(pipeline.getReplicas());
+            List<Future<String>> futures = list();
+            for (final String text : texts) {
+                inFlight.acquire();
+                futures.add(BATCH_EXECUTOR.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        try {
+                            return pipeline.annotate(text);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+            List<BatchResult> results = list();
+            for (int i = 0; i < futures.size(); i++) {
+                BatchResult result = new BatchResult(ids.get(i));
+                try {
+                    result.setResult(futures.get(i).get());
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    SherlokException se = cause instanceof SherlokException ? (SherlokException) cause
+                            : new SherlokException("failed to annotate")
+                                    .setDetails(cause.toString());
+                    LOG.info("could not annotate document '" + ids.get(i)
+                            + "' in " + route + ", " + se.getMessage());
+                    result.setError(se.setObject(ids.get(i).toString()));
+                }
+                results.add(result);
+            }
+            long annotate = currentTimeMillis() - resolved;
+
+            return map("results", results, "_stats", map(
+                    "_pipeline_resolution", resolve, //
+                    "_annotation", annotate, //
+                    "_documents", results.size()));
+
+        } catch (SherlokException ve) {
+            return invalid(route, ve, resp);
+        } catch (Exception e) {
+            return error(route, e, resp);
+        }
+    }
+
+    /** Request attribute holding the parsed JSON body */
+    private static final String PARSED_BODY = "sherlok.parsed_body";
+
     /**
      * Extract `param` from `req`, either from the request itself or from its
      * body (which is expected to be a JSON object), in that order.
@@ -614,9 +1113,19 @@ public class SherlokServer {
 
         // If the param is not in the header, try its body
         if (value == null) {
-            try {
-                value = new JSONObject(req.body()).getString(param);
-            } catch (JSONException e) {
+            // parse the body only once per request
+            Object body = req.attribute(PARSED_BODY);
+            if (body == null) {
+                try {
+                    body = new JSONObject(req.body());
+                } catch (JSONException e) {
+                    body = JSONObject.NULL; // body format is not JSON
+                }
+                req.attribute(PARSED_BODY, body);
+            }
+            if (body instanceof JSONObject && ((JSONObject) body).has(param)) {
+                value = ((JSONObject) body).optString(param, null);
+            } else {
                 // Value not found/body format is not JSON.
                 LOG.warn("Request {} doesn't contain any value for param {}",
                         req.raw(), param);
@@ -667,7 +1176,13 @@ public class SherlokServer {
             Response resp) {
         se.setRoute(route);
         LOG.info("could not process '" + route + "', " + se.getMessage(), se);
-        resp.status(STATUS_INVALID);
+        if (se instanceof ServerBusyException) {
+            resp.status(STATUS_UNAVAILABLE);
+            resp.header("Retry-After", ""
+                    + ((ServerBusyException) se).getRetryAfter());
+        } else {
+            resp.status(STATUS_INVALID);
+        }
         resp.type(JSON);
         return se.toJson();
     }
@@ -745,6 +1260,31 @@ public class SherlokServer {
         String masterUrl = null;
         @Parameter(names = "-sealed", description = "Turns sealed mode on. Specifies allowed pipeline")
         String sealed = null;
+        @Parameter(names = "-replicas", description = "How many engine replicas each pipeline creates, unless set in the pipeline itself.")
+        int replicas = 1;
+        @Parameter(names = "-annotation-cache-size", description = "Size (in Mb) of the in-memory annotation results cache, 0 to disable it.")
+        int annotationCacheSize = 64;
+        @Parameter(names = "-annotation-cache-disk", description = "Also caches annotation results on disk, to survive restarts.")
+        boolean annotationCacheDisk = false;
+        @Parameter(names = "-annotation-cache-disk-size", description = "Size (in Mb) of the on-disk annotation results cache, least recently used results get deleted beyond it.")
+        int annotationCacheDiskSize = 1024;
+        @Parameter(names = "-acquire-timeout", description = "How long (in seconds) annotation requests wait for a free pipeline, before failing with a 503.")
+        int acquireTimeout = 30;
+        @Parameter(names = "-job-threads", description = "How many asynchronous annotation jobs run in parallel.")
+        int jobThreads = Math.max(1, Runtime.getRuntime()
+                .availableProcessors() / 2);
+        @Parameter(names = "-pipeline-cache-size", description = "Heap budget (in Mb) of the loaded pipelines, least recently used ones get unloaded beyond it. 0 for half of the max heap.")
+        int pipelineCacheSize = 0;
+        @Parameter(names = "-pipeline-idle-timeout", description = "After how long (in minutes) unused pipelines get unloaded, 0 to never unload them.")
+        int pipelineIdleTimeout = 0;
+        @Parameter(names = "-warmup-iterations", description = "How many times pipelines loaded on startup annotate their test inputs, to warm up.")
+        int warmupIterations = 10;
+        @Parameter(names = "-swap-tests", description = "Reloaded pipelines must pass their tests before replacing the previous ones.")
+        boolean swapTests = false;
+        @Parameter(names = "-trim-types", description = "Build each pipeline's CASes with only the types it uses (declared in its engines' capabilities, or named in its script), instead of all types found on the classpath. Engines must then declare all the types they create.")
+        boolean trimTypes = false;
+        @Parameter(names = "-offline", description = "Only resolve pipeline dependencies from the local repositories (runtime/local_repo and ~/.m2), never from remote ones. Always on in sealed mode.")
+        boolean offline = false;
     }
 
     public static void main(String[] args) throws Exception {
@@ -754,9 +1294,22 @@ public class SherlokServer {
         CliArguments argParser = new CliArguments();
         new JCommander(argParser, args);
         try {
+            UimaPipeline.setDefaultReplicas(argParser.replicas);
+            UimaPipeline.setAcquireTimeout(argParser.acquireTimeout);
+            UimaPipeline.setWarmupIterations(argParser.warmupIterations);
+            UimaPipeline.setTrimTypes(argParser.trimTypes);
+            JobManager.setDefaultThreads(argParser.jobThreads);
+            PipelineLoader.setSwapTests(argParser.swapTests);
+            AetherResolver.setOffline(argParser.offline
+                    || argParser.sealed != null);
+            PipelineCache.setDefaults(argParser.pipelineCacheSize,
+                    argParser.pipelineIdleTimeout);
+            AnnotationCache.setDefaults(argParser.annotationCacheSize,
+                    argParser.annotationCacheDisk,
+                    argParser.annotationCacheDiskSize);
             init(argParser.port, argParser.address, argParser.masterUrl,
                     argParser.sealed);
-        } catch (SherlokException e) {
+        } catch (SherlokException | IllegalArgumentException e) {
             System.err.println("fatal error: " + e.toString());
         }
     }
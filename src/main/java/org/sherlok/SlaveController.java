@@ -86,8 +86,9 @@ public class SlaveController extends SealedController {
 
         LOG.debug(
                 "SLAVE: Done loading from master '{}': {} bundles, {} engines, {} pipelines. Using tmp dir '{}'",
-                new Object[] { masterUrl, bundleDefs.size(), engineDefs.size(),
-                        pipelineDefs.size(), tmpDir });
+                new Object[] { masterUrl, registry.bundleDefs.size(),
+                        registry.engineDefs.size(),
+                        registry.pipelineDefs.size(), tmpDir });
         return (SlaveController) c;
     }
 
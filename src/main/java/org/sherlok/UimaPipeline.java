@@ -15,8 +15,12 @@
  */
 package org.sherlok;
 
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
 import static org.apache.uima.ruta.engine.RutaEngine.PARAM_ADDITIONAL_ENGINES;
+import static org.apache.uima.ruta.engine.RutaEngine.PARAM_ADDITIONAL_ENGINE_LOADERS;
 import static org.apache.uima.ruta.engine.RutaEngine.PARAM_DESCRIPTOR_PATHS;
 import static org.apache.uima.ruta.engine.RutaEngine.PARAM_MAIN_SCRIPT;
 import static org.apache.uima.ruta.engine.RutaEngine.PARAM_RESOURCE_PATHS;
@@ -27,52 +31,95 @@ import static org.sherlok.EngineOps.generateXmlDescriptor;
 import static org.sherlok.utils.CheckThat.validateId;
 import static org.sherlok.utils.Create.list;
 import static org.sherlok.utils.Create.map;
+import static org.sherlok.utils.Create.set;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringWriter;
-import java.util.Iterator;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.uima.UIMAException;
+import org.apache.uima.UIMAFramework;
 import org.apache.uima.analysis_engine.AnalysisEngine;
 import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.analysis_engine.TypeOrFeature;
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
 import org.apache.uima.cas.FSIterator;
 import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
-import org.apache.uima.cas.impl.FilteringTypeSystem;
-import org.apache.uima.cas.impl.TypeSystemImpl;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.component.NoOpAnnotator;
-import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
 import org.apache.uima.fit.pipeline.SimplePipeline;
 import org.apache.uima.jcas.tcas.Annotation;
-import org.apache.uima.json.JsonCasSerializer;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.ResourceManager;
+import org.apache.uima.resource.metadata.Capability;
+import org.apache.uima.resource.metadata.FeatureDescription;
 import org.apache.uima.resource.metadata.TypeDescription;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
 import org.apache.uima.ruta.engine.RutaEngine;
 import org.apache.uima.ruta.ontologies.OntoActionExtension;
-import org.apache.uima.util.CasPool;
+import org.apache.uima.util.CasCopier;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.TypeSystemUtil;
+import org.sherlok.EngineOps.Descriptor;
+import org.sherlok.AnnotationCache.CopyingWriter;
 import org.sherlok.RutaHelper.TypeDTO;
 import org.sherlok.RutaHelper.TypeFeatureDTO;
 import org.sherlok.config.ConfigVariableManager;
 import org.sherlok.config.NoSuchVariableException;
 import org.sherlok.config.ProcessConfigVariableException;
+import org.sherlok.mappings.BinaryCasDecoder;
 import org.sherlok.mappings.BundleDef.EngineDef;
 import org.sherlok.mappings.PipelineDef;
+import org.sherlok.mappings.PipelineDef.PipelineOutput;
+import org.sherlok.mappings.PipelineDef.PipelineTest;
+import org.sherlok.mappings.ServerBusyException;
 import org.sherlok.mappings.SherlokException;
+import org.sherlok.utils.HeapSize;
+import org.sherlok.utils.JsonStreamRewriter;
+import org.sherlok.utils.TextChunker;
 import org.slf4j.Logger;
 import org.xml.sax.SAXException;
 
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Manages a UIMA pipeline (configuration, and then use/annotation), based on a
  * {@link PipelineDef}.<br>
@@ -94,17 +141,115 @@ import org.xml.sax.SAXException;
 public class UimaPipeline {
     private static Logger LOG = getLogger(UimaPipeline.class);
 
+    /** CASes whose heap grew larger (e.g. after a very large document) are
+     * discarded instead of being reused */
+    static final long MAX_CAS_HEAP_BYTES = 32 * 1024 * 1024;
+    /** Max nr of cached type projections (per pipeline) */
+    static final int MAX_PROJECTIONS = 64;
+
+    /** Annotates the chunks of large texts, see {@link #runChunked(String)} */
+    private static final ExecutorService CHUNK_EXECUTOR = Executors
+            .newFixedThreadPool(
+                    2 * Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("sherlok-chunk-%d").build());
+
+    /** How long to wait for engines and a CAS, before giving up */
+    private static long acquireTimeoutMs = 30 * 1000;
+
+    /** How many times {@link #warmup()} annotates each test input */
+    private static int warmupIterations = 10;
+
+    /** Used when {@link PipelineDef#getReplicas()} is not set (0) */
+    private static int defaultReplicas = 1;
+
+    /**
+     * Whether CASes only get the types their pipeline uses. Off by default:
+     * engines may create types their capabilities do not declare.
+     */
+    private static boolean trimTypes = false;
+    /** Ruta's own types, that its engine creates whatever the script */
+    private static final String RUTA_TYPES = "org.apache.uima.ruta.type.";
+    private static final Pattern SCRIPT_WORD = Pattern.compile("[\\w.]+");
+
+    /**
+     * k: classloader, v: the type descriptors it finds. Scanning is slow, and
+     * the jars of a classloader never change (new jars come with a new
+     * {@link BundleClassLoaders} classloader).
+     */
+    private static final Map<ClassLoader, TypeSystemDescription> SCANNED_TSDS = new WeakHashMap<>();
+
     private final PipelineDef pipelineDef;
     private final String language;
+    /** How many engine replicas it has */
+    private final int replicas;
 
     private List<AnalysisEngineDescription> aeds = list();
-    private AnalysisEngine[] aes = null;
+    /** All engine replicas (one array of engines per replica) */
+    private List<AnalysisEngine[]> aesReplicas = list();
+    /** Idle engine replicas, leased together with a CAS */
+    private BlockingQueue<AnalysisEngine[]> aesPool;
+    /** Loads the jars of this pipeline's bundles, see {@link BundleClassLoaders} */
+    private final ClassLoader classLoader;
+    /** Loads this pipeline's engines through {@link #classLoader} */
+    private final ResourceManager resourceManager;
+    /**
+     * The engines used from the {@link EngineRegistry} (k: descriptor name, v:
+     * registry key)
+     */
+    private final Map<String, String> sharedEngines = new LinkedHashMap<>();
+    /**
+     * Idle instances of the shared engines, see
+     * {@link EngineRegistry#getInstances(String)}; ordered by key, so that all
+     * pipelines take them in the same order
+     */
+    private final List<Semaphore> sharedInstances = list();
+    /**
+     * Estimated heap this pipeline retains, without its shared engines (see
+     * {@link #getSharedEngineBytes()})
+     */
+    private long bytes = 0;
+    /** How many leases are out; engines are destroyed once closed and 0 */
+    private int activeLeases = 0;
+    private boolean closed = false;
+    private boolean destroyed = false;
 
     /** Keeps track of the {@link Type}s added in every Ruta script */
     private TypeSystemDescription tsd;
-    private CasPool casPool;
-    /** JSON serializer */
-    private JsonCasSerializer jsonSerializer;
+    /**
+     * Names (or short names) of the types this pipeline uses, see
+     * {@link #trimTSD}. Null if it could use any type.
+     */
+    private Set<String> usedTypes = set();
+    private ElasticCasPool casPool;
+    /** Writes the JSON output */
+    private AnnotationSerializer serializer;
+    /** Serializers of per-request projections, least recently used first */
+    private final Map<String, AnnotationSerializer> projections = new LinkedHashMap<String, AnnotationSerializer>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Entry<String, AnnotationSerializer> eldest) {
+            return size() > MAX_PROJECTIONS;
+        }
+    };
+    /**
+     * Target type system of the binary output, its XML descriptor (served
+     * separately) and the hash that binary responses reference it by
+     */
+    private TypeSystem binaryTs;
+    private byte[] binaryTsdXml;
+    private String binaryTsHash;
+    /** Caches annotation results, can be null */
+    private AnnotationCache annotationCache;
+    private String cacheKeyPrefix;
+    /**
+     * Identifies what this pipeline loaded (its dependencies and engines), see
+     * {@link AnnotationCache#keyPrefix}
+     */
+    private final List<String> loaded = list();
 
     /**
      * @param pipelineId
@@ -118,105 +263,271 @@ public class UimaPipeline {
      */
     public UimaPipeline(PipelineDef pipelineDef, List<EngineDef> engineDefs)
             throws IOException, SherlokException, UIMAException {
+        this(pipelineDef, engineDefs, BundleClassLoaders.BASE);
+    }
+
+    /**
+     * @param classLoader
+     *            loads the jars of the engines' bundles, from
+     *            {@link BundleClassLoaders#acquire}. Released when this
+     *            pipeline gets closed (or fails to load).
+     */
+    public UimaPipeline(PipelineDef pipelineDef, List<EngineDef> engineDefs,
+            ClassLoader classLoader) throws IOException, SherlokException,
+            UIMAException {
         this.pipelineDef = pipelineDef;
         this.language = pipelineDef.getLanguage();
+        this.classLoader = classLoader;
+        this.resourceManager = BundleClassLoaders
+                .newResourceManager(classLoader);
 
-        this.tsd = reloadTSD();// needed since we have added new jars to the CP
+        this.replicas = pipelineDef.getReplicas() > 0 ? pipelineDef
+                .getReplicas() : defaultReplicas;
 
-        initScript(list(pipelineDef.getScriptLines()) /* a copy */, engineDefs);
-        initEngines();
-        casPool = initCasPool(tsd);
-        jsonSerializer = filterAnnots(pipelineDef.getOutput()
-                .getAnnotationIncludes(), pipelineDef.getOutput()
-                .getAnnotationFilters(), casPool);
+        long allocatedBefore = PipelineCache.allocatedBytes();
+        loaded.add(BundleClassLoaders.keyOf(classLoader));
+        // engines and type descriptors get looked up in this pipeline's jars
+        Thread thread = Thread.currentThread();
+        ClassLoader previousClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            this.tsd = reloadTSD();
+            initScript(list(pipelineDef.getScriptLines()) /* a copy */,
+                    engineDefs, replicas);
+            for (String key : new TreeSet<String>(sharedEngines.values())) {
+                sharedInstances.add(EngineRegistry.getInstances(key));
+            }
+            initEngines(replicas);
+            int casPoolMin = pipelineDef.getCasPoolMin() > 0 ? pipelineDef
+                    .getCasPoolMin() : 1;
+            int casPoolMax = pipelineDef.getCasPoolMax() > 0 ? pipelineDef
+                    .getCasPoolMax() : Math.max(casPoolMin, replicas + 1);
+            TypeSystemDescription casTsd = tsd;
+            if (trimTypes && usedTypes != null) {
+                casTsd = trimTSD(tsd, usedTypes);
+                LOG.debug("pipeline '{}' uses {} of {} type(s)", new Object[] {
+                        pipelineDef.getId(), casTsd.getTypes().length,
+                        tsd.getTypes().length });
+            }
+            casPool = initCasPool(casTsd, casPoolMin, casPoolMax,
+                    resourceManager);
+            serializer = initSerializer(pipelineDef.getOutput(), casPool);
+            bytes += Math.max(0, PipelineCache.allocatedBytes()
+                    - allocatedBefore);
+            long retained = HeapSize.retainedBytes(this,
+                    getSharedEngines().toArray());
+            if (retained >= 0) { // else keeps the allocated bytes
+                bytes = retained;
+            }
+        } catch (IOException | SherlokException | UIMAException
+                | RuntimeException e) {
+            close(); // releases the shared engines and the classloader
+            throw e;
+        } finally {
+            thread.setContextClassLoader(previousClassLoader);
+        }
 
         // // ensures Ruta errors can be catched, at last
         // annotate("Some test text to check for Ruta script errors.");
     }
 
-    static TypeSystemDescription reloadTSD() {
-        try {
-            TypeSystemDescriptionFactory.forceTypeDescriptorsScan();
-            return TypeSystemDescriptionFactory.createTypeSystemDescription();
-        } catch (ResourceInitializationException e) {
-            throw new RuntimeException(e); // should not happen
+    /**
+     * @param replicas
+     *            how many copies of the engines each pipeline creates by
+     *            default, when its {@link PipelineDef#getReplicas()} is not set
+     */
+    public static void setDefaultReplicas(int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException(
+                    "replicas must be at least 1, but was " + replicas);
         }
+        defaultReplicas = replicas;
     }
 
     /**
-     * @return a cas JSON serializer that filters the JSON output, either with
-     *         includes or filters. If no includes/filter is provided, no
-     *         filtering is performed (it just uses all the annotations from the
-     *         {@link TypeSystem}).
+     * @param iterations
+     *            how many times {@link #warmup()} annotates each test input, 0
+     *            to disable warmup
      */
-    static JsonCasSerializer filterAnnots(List<String> includes,
-            List<String> filters, CasPool casPool) {
+    public static void setWarmupIterations(int iterations) {
+        if (iterations < 0) {
+            throw new IllegalArgumentException(
+                    "warmup iterations must be positive, but was "
+                            + iterations);
+        }
+        warmupIterations = iterations;
+    }
 
-        CAS cas = casPool.getCas();
-        TypeSystem ts = cas.getTypeSystem();
-        TypeSystem filteredTs;
-        // TODO first include, then filter!
-        if (!includes.isEmpty()) {
-
-            filteredTs = new FilteringTypeSystem();
-            Iterator<Type> tit = ts.getTypeIterator();
-            while (tit.hasNext()) {
-                Type type = tit.next();
-
-                boolean shouldInclude = false;
-                for (String include : includes) {
-                    if (include.endsWith(".*")
-                            && type.getName().startsWith(
-                                    include.substring(0, include.length() - 2))) {
-                        shouldInclude = true;
-                        break;
-                    } else if (include.equals(type.getName())) {
-                        shouldInclude = true;
-                        break;
-                    }
-                }
-                if (shouldInclude) {
-                    LOG.trace("including type '{}'", type);
-                    ((FilteringTypeSystem) filteredTs).includeType(type);
+    /**
+     * @param trim
+     *            whether pipelines build their CASes with only the types they
+     *            use (see {@link #trimTSD}), instead of all types found on the
+     *            classpath. Only safe if their engines declare all the types
+     *            they create in their capabilities.
+     */
+    public static void setTrimTypes(boolean trim) {
+        trimTypes = trim;
+    }
+
+    /**
+     * @param seconds
+     *            how long annotation requests wait for engines and a CAS,
+     *            before failing with a {@link ServerBusyException}
+     */
+    public static void setAcquireTimeout(int seconds) {
+        if (seconds < 1) {
+            throw new IllegalArgumentException(
+                    "acquire timeout must be at least 1 second, but was "
+                            + seconds);
+        }
+        acquireTimeoutMs = seconds * 1000l;
+    }
+
+    /**
+     * @return a copy of the type descriptors found by the context classloader
+     *         (Sherlok's classpath, and the jars of the pipeline being
+     *         loaded), only scanned once per classloader
+     */
+    static TypeSystemDescription reloadTSD() {
+        ClassLoader classLoader = Thread.currentThread()
+                .getContextClassLoader();
+        // the scan is global, pipelines loading in parallel must not mix
+        synchronized (TypeSystemDescriptionFactory.class) {
+            TypeSystemDescription scanned = SCANNED_TSDS.get(classLoader);
+            if (scanned == null) {
+                try {
+                    TypeSystemDescriptionFactory.forceTypeDescriptorsScan();
+                    scanned = TypeSystemDescriptionFactory
+                            .createTypeSystemDescription();
+                } catch (ResourceInitializationException e) {
+                    throw new RuntimeException(e); // should not happen
                 }
+                SCANNED_TSDS.put(classLoader, scanned);
+                LOG.debug("scanned {} type(s) for {}",
+                        scanned.getTypes().length, classLoader);
             }
+            // pipelines add their Ruta types to it
+            return (TypeSystemDescription) scanned.clone();
+        }
+    }
 
-        } else if (!filters.isEmpty()) {
+    /**
+     * @param tsd
+     *            all types
+     * @param usedTypes
+     *            names or short names of the types a pipeline uses: the types
+     *            declared by its engines' capabilities, or mentioned in its
+     *            Ruta script
+     * @return the used types, their subtypes (engines may create these
+     *         instead), and the types these depend on (supertypes and
+     *         feature ranges). Ruta's own types are always kept.
+     */
+    static TypeSystemDescription trimTSD(TypeSystemDescription tsd,
+            Set<String> usedTypes) {
+        Map<String, TypeDescription> types = map();
+        Map<String, List<String>> subtypes = map();
+        for (TypeDescription t : tsd.getTypes()) {
+            types.put(t.getName(), t);
+            if (!subtypes.containsKey(t.getSupertypeName())) {
+                subtypes.put(t.getSupertypeName(), new ArrayList<String>());
+            }
+            subtypes.get(t.getSupertypeName()).add(t.getName());
+        }
 
-            filteredTs = new FilteringTypeSystem();
-            Iterator<Type> tit = ts.getTypeIterator();
-            while (tit.hasNext()) {
-                Type type = tit.next();
+        // used types, and their subtypes
+        Set<String> kept = set();
+        Deque<String> todo = new ArrayDeque<String>();
+        for (TypeDescription t : tsd.getTypes()) {
+            String shortName = t.getName().substring(
+                    t.getName().lastIndexOf('.') + 1);
+            if (usedTypes.contains(t.getName())
+                    || usedTypes.contains(shortName)
+                    || t.getName().startsWith(RUTA_TYPES)) {
+                todo.add(t.getName());
+            }
+        }
+        while (!todo.isEmpty()) {
+            String name = todo.pop();
+            if (kept.add(name) && subtypes.containsKey(name)) {
+                todo.addAll(subtypes.get(name));
+            }
+        }
 
-                boolean shouldFilter = false;
-                for (String filter : filters) {
-                    if (filter.endsWith(".*")
-                            && type.getName().startsWith(
-                                    filter.substring(0, filter.length() - 2))) {
-                        shouldFilter = true;
-                        break;
-                    } else if (filter.equals(type.getName())) {
-                        shouldFilter = true;
-                        break;
-                    }
-                }
-                if (!shouldFilter) {
-                    LOG.trace("including type '{}'", type);
-                    ((FilteringTypeSystem) filteredTs).includeType(type);
-                } else {
-                    LOG.trace("filtering type '{}'", type);
+        // and what they depend on
+        todo.addAll(kept);
+        while (!todo.isEmpty()) {
+            TypeDescription t = types.get(todo.pop());
+            for (String dependency : dependencies(t)) {
+                if (types.containsKey(dependency) && kept.add(dependency)) {
+                    todo.add(dependency);
                 }
             }
+        }
 
-        } else { // no filtering or includes --> use full ts
-            LOG.trace("including all type");
-            filteredTs = ts;
+        List<TypeDescription> trimmed = list();
+        for (TypeDescription t : tsd.getTypes()) {
+            if (kept.contains(t.getName())) {
+                trimmed.add(t);
+            }
         }
-        casPool.releaseCas(cas);
+        TypeSystemDescription trimmedTsd = new TypeSystemDescription_impl();
+        trimmedTsd.setTypes(trimmed.toArray(new TypeDescription[trimmed
+                .size()]));
+        return trimmedTsd;
+    }
 
-        // initialize JSON writer with filter
-        return new JsonCasSerializer().setFilterTypes(
-                (TypeSystemImpl) filteredTs).setPrettyPrint(true);
+    /** @return the supertype and feature (element) ranges of this type */
+    private static List<String> dependencies(TypeDescription t) {
+        List<String> dependencies = list(t.getSupertypeName());
+        for (FeatureDescription f : t.getFeatures()) {
+            dependencies.add(f.getRangeTypeName());
+            if (f.getElementType() != null) {
+                dependencies.add(f.getElementType());
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Adds the types declared by an engine's capabilities to
+     * {@link #usedTypes}. Engines that declare none could use any type.
+     */
+    private void addUsedTypes(Capability[] capabilities) {
+        if (usedTypes == null) {
+            return;
+        }
+        boolean declared = false;
+        for (Capability capability : capabilities) {
+            for (TypeOrFeature[] tofs : new TypeOrFeature[][] {
+                    capability.getInputs(), capability.getOutputs() }) {
+                for (TypeOrFeature tof : tofs) {
+                    // features are named 'type:feature'
+                    usedTypes.add(tof.isType() ? tof.getName() : tof
+                            .getName().split(":")[0]);
+                    declared = true;
+                }
+            }
+        }
+        if (!declared) {
+            usedTypes = null;
+        }
+    }
+
+    /**
+     * @return the JSON serializer of this pipeline's output, that only keeps
+     *         the included (or not filtered) annotation types. If no
+     *         includes/filters are provided, all annotation types are kept.
+     */
+    static AnnotationSerializer initSerializer(PipelineOutput output,
+            ElasticCasPool casPool) throws ResourceInitializationException {
+        CAS cas = casPool.getCas();
+        try {
+            return new AnnotationSerializer(cas.getTypeSystem(),
+                    output.getAnnotationIncludes(),
+                    output.getAnnotationFilters(), output.isIncludeText());
+        } finally {
+            casPool.releaseCas(cas);
+        }
     }
 
     static final Map<String, String> CHAR_MAPPING = map();
@@ -230,26 +541,93 @@ public class UimaPipeline {
         CHAR_MAPPING.put("RCURLY", "}");
     }
 
-    private void initEngines() throws UIMAException, SherlokException {
-        // redirect stdout to catch Ruta script errors
-        ByteArrayOutputStream baosOut = new ByteArrayOutputStream();
-        ByteArrayOutputStream baosErr = new ByteArrayOutputStream();
-        PrintStream origOut = System.out;
-        PrintStream origErr = System.err;
-        System.setOut(new PrintStream(baosOut));
-        System.setErr(new PrintStream(baosErr));
+    /**
+     * Stands in for System.out (or err), and captures what a thread writes to
+     * it between {@link #start()} and {@link #stop()}, e.g. the Ruta script
+     * errors printed while {@link UimaPipeline#initEngines} runs. Other
+     * threads keep writing to the original stream, so pipelines loading in
+     * parallel neither capture each other's (or anyone else's) output, nor
+     * restore the wrong stream.
+     */
+    private static class ThreadCapture extends OutputStream {
+        private final PrintStream original;
+        private final ThreadLocal<ByteArrayOutputStream> captured = new ThreadLocal<ByteArrayOutputStream>();
+
+        private ThreadCapture(PrintStream original) {
+            this.original = original;
+        }
+
+        private OutputStream target() {
+            ByteArrayOutputStream capture = captured.get();
+            return capture != null ? capture : original;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+
+        private void start() {
+            captured.set(new ByteArrayOutputStream());
+        }
+
+        /** @return what this thread wrote since {@link #start()} */
+        private String stop() {
+            ByteArrayOutputStream capture = captured.get();
+            captured.remove();
+            return capture == null ? "" : capture.toString();
+        }
+    }
+
+    private static ThreadCapture capturedOut, capturedErr;
 
+    /** Replaces System.out and err with {@link ThreadCapture}s, once */
+    private static synchronized void installCaptures() {
+        if (capturedOut == null) {
+            capturedOut = new ThreadCapture(System.out);
+            capturedErr = new ThreadCapture(System.err);
+            System.setOut(new PrintStream(capturedOut, true));
+            System.setErr(new PrintStream(capturedErr, true));
+        }
+    }
+
+    private void initEngines(int replicas) throws UIMAException,
+            SherlokException {
+        // capture this thread's stdout to catch Ruta script errors
+        installCaptures();
+        capturedOut.start();
+        capturedErr.start();
+
+        // Ruta gets its shared engines while it is initialized
+        EngineRegistry.bind(sharedEngines);
         try {
-            // initialize Engines
-            aes = createEngines(aeds.toArray(new AnalysisEngineDescription[aeds
-                    .size()]));
-        } finally { // so that we restore Sysout in any case
+            // initialize Engines, once per replica
+            AnalysisEngineDescription[] descs = aeds
+                    .toArray(new AnalysisEngineDescription[aeds.size()]);
+            aesPool = new ArrayBlockingQueue<AnalysisEngine[]>(replicas);
+            for (int i = 0; i < replicas; i++) {
+                AnalysisEngine[] aes = createEngines(resourceManager, descs);
+                aesReplicas.add(aes);
+                aesPool.add(aes);
+            }
+            LOG.debug("created {} engine replica(s) for pipeline '{}'",
+                    replicas, pipelineDef.getId());
+        } finally { // so that we stop capturing in any case
+            EngineRegistry.unbind();
 
             // catching Ruta script outputs (these contain errors)
-            String maybeOut = baosOut.toString();
-            System.setOut(origOut); // restore
-            String maybeErr = baosErr.toString();
-            System.setErr(origErr); // restore
+            String maybeOut = capturedOut.stop();
+            String maybeErr = capturedErr.stop();
 
             if (maybeErr.startsWith("Adding annotator")) {
                 maybeErr = "";// fix for StanfordNLP output FIXME
@@ -282,25 +660,36 @@ public class UimaPipeline {
         }
     }
 
-    static CasPool initCasPool(TypeSystemDescription tsd)
+    static ElasticCasPool initCasPool(TypeSystemDescription tsd, int minSize,
+            int maxSize, ResourceManager resourceManager)
             throws ResourceInitializationException {
 
         // for (TypeDescription td : tsd.getTypes())
         // LOG.debug("type: {}", td.getName());
 
-        AnalysisEngine noOpEngine = AnalysisEngineFactory.createEngine(
-                NoOpAnnotator.class, tsd);
-        return new CasPool(10, noOpEngine);
+        AnalysisEngine noOpEngine = UIMAFramework.produceAnalysisEngine(
+                createEngineDescription(NoOpAnnotator.class, tsd),
+                resourceManager, null);
+        try {
+            return new ElasticCasPool(noOpEngine, minSize, maxSize,
+                    MAX_CAS_HEAP_BYTES);
+        } catch (ResourceInitializationException | RuntimeException e) {
+            noOpEngine.destroy();
+            throw e;
+        }
     }
 
     private static AnalysisEngine[] createEngines(
+            ResourceManager resourceManager,
             AnalysisEngineDescription... descs) throws UIMAException {
         AnalysisEngine[] engines = new AnalysisEngine[descs.length];
         for (int i = 0; i < engines.length; ++i) {
             if (descs[i].isPrimitive()) {
-                engines[i] = AnalysisEngineFactory.createEngine(descs[i]);
+                engines[i] = UIMAFramework.produceAnalysisEngine(descs[i],
+                        resourceManager, null);
             } else {
-                engines[i] = AnalysisEngineFactory.createEngine(descs[i]);
+                engines[i] = UIMAFramework.produceAnalysisEngine(descs[i],
+                        resourceManager, null);
             }
             // FIXME both if and else bodies are equivalent. Should something
             // special be done or should the if statement be removed?
@@ -323,56 +712,555 @@ public class UimaPipeline {
     public Object annotate(Annotate annotate) throws UIMAException,
             SAXException, SherlokException {
 
+        Lease lease = null;
+        try {
+            lease = lease();
+            return annotate.annotate(lease.cas, lease.aes);
+        } finally {
+            release(lease);
+        }
+    }
+
+    /**
+     * A CAS and one engine replica, used together by a single thread. Without
+     * engines, a CAS created outside of the pool (see {@link #runChunked})
+     */
+    private static class Lease {
+        private final AnalysisEngine[] aes;
+        private final CAS cas;
+
+        private Lease(AnalysisEngine[] aes, CAS cas) {
+            this.aes = aes;
+            this.cas = cas;
+        }
+    }
+
+    /**
+     * Leases an idle engine replica, then a CAS, then an instance of each
+     * shared engine. Waits until all are available, or throws a
+     * {@link ServerBusyException} after {@link #setAcquireTimeout(int)}. Must
+     * be {@link #release(Lease)}d.
+     */
+    private Lease lease() throws SherlokException {
+        long deadline = currentTimeMillis() + acquireTimeoutMs;
+        AnalysisEngine[] aes;
         CAS cas = null;
+        enter();
         try {
-            // TODO how long to wait?
-            cas = casPool.getCas(0);// cas.reset done by casPool
-            return annotate.annotate(cas, aes);
+            aes = aesPool.poll(acquireTimeoutMs, MILLISECONDS);
+            if (aes == null) {
+                throw busy("no engines available");
+            }
+            try {
+                // cas.reset done by casPool
+                cas = casPool.getCas(Math.max(0, deadline
+                        - currentTimeMillis()));
+            } finally {
+                if (cas == null) {
+                    aesPool.add(aes); // give the engines back
+                }
+            }
+            if (cas == null) {
+                throw busy("no CAS available");
+            }
+            boolean shared = false;
+            try {
+                shared = acquireSharedInstances(deadline);
+            } finally {
+                if (!shared) { // give the engines and CAS back
+                    casPool.releaseCas(cas);
+                    aesPool.add(aes);
+                    cas = null;
+                }
+            }
+            if (!shared) {
+                throw busy("no shared engine instance available");
+            }
+            return new Lease(aes, cas);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SherlokException("interrupted while waiting for engines",
+                    pipelineDef.getId());
+        } catch (ResourceInitializationException e) {
+            throw new SherlokException("could not create CAS",
+                    pipelineDef.getId()).setDetails(e.getMessage());
         } finally {
-            casPool.releaseCas(cas);
+            if (cas == null) {
+                exit();
+            }
+        }
+    }
+
+    /**
+     * Counts a lease, or fails if this pipeline was {@link #close()}d (e.g.
+     * evicted from the {@link PipelineCache}) meanwhile.
+     */
+    private synchronized void enter() throws ServerBusyException {
+        if (closed) {
+            throw (ServerBusyException) new ServerBusyException(
+                    "pipeline was unloaded", pipelineDef.getId(), 1)
+                    .setRemedy("retry, the pipeline will be reloaded");
+        }
+        activeLeases++;
+    }
+
+    /** Uncounts a lease, and destroys the engines if this was the last one */
+    private void exit() {
+        boolean last;
+        synchronized (this) {
+            activeLeases--;
+            last = closed && activeLeases == 0;
+        }
+        if (last) {
+            destroy();
+        }
+    }
+
+    private ServerBusyException busy(String details) {
+        return (ServerBusyException) new ServerBusyException(
+                "server busy, timed out after " + acquireTimeoutMs + "ms",
+                pipelineDef.getId(), 1).setDetails(details).setRemedy(
+                "retry later, or increase the pipeline's 'replicas'");
+    }
+
+    /**
+     * Takes an idle instance of each shared engine: other pipelines with as
+     * many replicas use them too
+     *
+     * @return false (and takes none) if one did not become idle before this
+     *         deadline
+     */
+    private boolean acquireSharedInstances(long deadline)
+            throws InterruptedException {
+        int acquired = 0;
+        try {
+            for (Semaphore instances : sharedInstances) {
+                if (!instances.tryAcquire(
+                        Math.max(0, deadline - currentTimeMillis()),
+                        MILLISECONDS)) {
+                    return false;
+                }
+                acquired++;
+            }
+        } finally {
+            if (acquired < sharedInstances.size()) {
+                for (int i = 0; i < acquired; i++) {
+                    sharedInstances.get(i).release();
+                }
+            }
+        }
+        return true;
+    }
+
+    private void release(Lease lease) {
+        if (lease != null) {
+            if (lease.aes != null) { // else not pooled, left to the GC
+                for (Semaphore instances : sharedInstances) {
+                    instances.release();
+                }
+                casPool.releaseCas(lease.cas);
+                aesPool.add(lease.aes);
+            }
+            exit();
+        }
+    }
+
+    /**
+     * Annotates (and serializes) the inputs of this pipeline's
+     * {@link PipelineDef#getTests()} repeatedly, bypassing the annotation
+     * cache, so that the JIT compiles the engines before real requests come.
+     */
+    public void warmup() throws UIMAException, SherlokException {
+        long start = currentTimeMillis();
+        Writer nullWriter = CharStreams.nullWriter();
+        for (int i = 0; i < warmupIterations; i++) {
+            for (PipelineTest test : pipelineDef.getTests()) {
+                Lease lease = run(test.getInput());
+                try {
+                    serializer.serialize(lease.cas, nullWriter, false);
+                } catch (IOException e) {
+                    throw new RuntimeException(e); // should not happen
+                } finally {
+                    release(lease);
+                }
+            }
+        }
+        LOG.debug("warmed up pipeline '{}' in {}ms", pipelineDef.getId(),
+                currentTimeMillis() - start);
+    }
+
+    /**
+     * Annotates this text, in chunks if it is larger than the pipeline's
+     * {@link PipelineDef#getChunkSize()}.
+     * 
+     * @return a lease holding the annotated CAS, must be
+     *         {@link #release(Lease)}d.
+     */
+    private Lease run(String text) throws UIMAException, SherlokException {
+        if (pipelineDef.getChunkSize() > 0
+                && text.length() > pipelineDef.getChunkSize()) {
+            return runChunked(text);
+        }
+        Lease lease = lease();
+        boolean processed = false;
+        try {
+            process(lease, text);
+            processed = true;
+            return lease;
+        } finally {
+            if (!processed) {
+                release(lease);
+            }
+        }
+    }
+
+    /**
+     * Splits this text into chunks, annotates them in parallel (each on its
+     * own lease), and merges their annotations into a single CAS.
+     * 
+     * @return a lease (without engines) holding the merged CAS
+     */
+    private Lease runChunked(final String text) throws UIMAException,
+            SherlokException {
+
+        // not from the pool: requests holding a target while their chunks
+        // wait for pooled CASes would otherwise starve each other
+        CAS cas = null;
+        enter();
+        try {
+            cas = casPool.newCas();
+        } finally {
+            if (cas == null) {
+                exit();
+            }
+        }
+        final CAS target = cas;
+        Lease merged = new Lease(null, target);
+        target.setDocumentText(text);
+        target.setDocumentLanguage(language);
+
+        List<Integer> ends = TextChunker.split(text,
+                pipelineDef.getChunkSize());
+        LOG.debug("annotating {} chars in {} chunks", text.length(),
+                ends.size());
+        List<Future<Void>> chunks = list();
+        // once a chunk failed, the remaining ones are skipped
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        int begin = 0;
+        for (final int end : ends) {
+            final int chunkBegin = begin;
+            chunks.add(CHUNK_EXECUTOR.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (aborted.get()) {
+                        return null;
+                    }
+                    Lease lease = lease();
+                    try {
+                        process(lease, text.substring(chunkBegin, end));
+                        synchronized (target) {
+                            mergeInto(lease.cas, target, chunkBegin);
+                        }
+                    } finally {
+                        release(lease);
+                    }
+                    return null;
+                }
+            }));
+            begin = end;
+        }
+
+        // wait for all chunks (even after a failure or an interrupt, since
+        // they all write into the target CAS)
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Void> chunk : chunks) {
+            while (true) {
+                try {
+                    chunk.get();
+                    break;
+                } catch (ExecutionException e) {
+                    aborted.set(true);
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                    interrupted = true;
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            release(merged);
+            if (failure instanceof SherlokException) {
+                throw (SherlokException) failure;
+            } else if (failure instanceof UIMAException) {
+                throw (UIMAException) failure;
+            } else {
+                throw new SherlokException("failed to annotate chunks",
+                        pipelineDef.getId()).setDetails(failure.toString());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Copies all annotations of this (chunk) CAS into the target CAS, shifting
+     * their begin/end by this offset. The chunk's document annotation is
+     * skipped. NOTE: only indexed annotations are shifted; annotations that
+     * are only referenced from features are copied as-is.
+     */
+    static void mergeInto(CAS chunk, CAS target, int offset) {
+        CasCopier copier = new CasCopier(chunk, target);
+        Type documentAnnotation = chunk.getDocumentAnnotation().getType();
+        Feature begin = target.getTypeSystem().getFeatureByFullName(
+                CAS.FEATURE_FULL_NAME_BEGIN);
+        Feature end = target.getTypeSystem().getFeatureByFullName(
+                CAS.FEATURE_FULL_NAME_END);
+        FSIterator<AnnotationFS> it = chunk.getAnnotationIndex().iterator();
+        while (it.hasNext()) {
+            AnnotationFS a = it.next();
+            if (a.getType().equals(documentAnnotation)) {
+                continue;
+            }
+            FeatureStructure copy = copier.copyFs(a);
+            copy.setIntValue(begin, a.getBegin() + offset);
+            copy.setIntValue(end, a.getEnd() + offset);
+            target.addFsToIndexes(copy);
         }
     }
 
     /**
      * @param text
      *            the text to annotate
+     * @return the annotations, as JSON
      */
     public String annotate(String text) throws UIMAException, SherlokException {
+        StringWriter sw = new StringWriter();
+        annotate(text, sw, false, null);
+        return sw.toString();
+    }
 
-        CAS cas = null;
+    /**
+     * Annotates this text, and streams the annotations as JSON to this writer
+     * (without building the JSON as a String first).
+     * 
+     * @param text
+     *            the text to annotate
+     * @param out
+     *            where to write the JSON annotations to. Gets flushed, but not
+     *            closed.
+     * @param prettyPrint
+     *            whether to indent the JSON output
+     * @param stats
+     *            if not null, gets appended to the JSON output as '_stats',
+     *            after the annotation and serialization timings are added to
+     *            it
+     */
+    public void annotate(String text, Writer out, boolean prettyPrint,
+            Map<String, Object> stats) throws UIMAException, SherlokException {
+        annotate(text, out, prettyPrint, null, stats);
+    }
+
+    /**
+     * Like {@link #annotate(String, Writer, boolean, Map)}, but only outputs
+     * these annotation types.
+     * 
+     * @param types
+     *            the annotation types to output (short or full names, or
+     *            prefixes ending with '.*'), among the types that this
+     *            pipeline outputs. If null or empty, all these types are
+     *            output.
+     */
+    public void annotate(String text, Writer out, boolean prettyPrint,
+            List<String> types, Map<String, Object> stats)
+            throws UIMAException, SherlokException {
+
+        String projection = null;
+        AnnotationSerializer serializer = this.serializer;
+        if (types != null && !types.isEmpty()) {
+            projection = Joiner.on(',').join(new TreeSet<String>(types));
+            serializer = getProjection(projection);
+        }
+
+        JsonStreamRewriter writer = new JsonStreamRewriter(out);
+        Lease lease = null;
+        Thread thread = Thread.currentThread();
+        ClassLoader previousClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            String cacheKey = null;
+            if (annotationCache != null) {
+                String variant = prettyPrint ? "json_pretty" : "json";
+                if (projection != null) {
+                    variant += "_"
+                            + Hashing.sha1().hashString(projection, UTF_8);
+                }
+                cacheKey = AnnotationCache.key(cacheKeyPrefix, variant, text);
+                byte[] cached = annotationCache.get(cacheKey);
+                if (cached != null) {
+                    writer.write(new String(cached, UTF_8));
+                    finishJson(writer, stats, true);
+                    return;
+                }
+            }
+
+            long start = currentTimeMillis();
+            lease = run(text);
+            long annotated = currentTimeMillis();
+
+            if (cacheKey != null) { // keep a copy of the JSON, to cache it
+                CopyingWriter copyingWriter = new CopyingWriter(writer,
+                        annotationCache.getMaxEntryBytes());
+                serializer.serialize(lease.cas, copyingWriter, prettyPrint);
+                byte[] copy = copyingWriter.getCopy();
+                if (copy != null) {
+                    annotationCache.put(cacheKey, copy);
+                }
+            } else {
+                serializer.serialize(lease.cas, writer, prettyPrint);
+            }
+
+            if (stats != null) {
+                stats.put("_annotation", annotated - start);
+                stats.put("_serialization", currentTimeMillis() - annotated);
+            }
+            finishJson(writer, stats, false);
+
+        } catch (IOException io) {
+            throw new SherlokException("Failed to annotate " + text,
+                    this.toString()).setDetails(io.getMessage());
+        } finally {
+            release(lease);
+            thread.setContextClassLoader(previousClassLoader);
+        }
+    }
+
+    /**
+     * @param projection
+     *            the (sorted) annotation types to output, comma-separated
+     * @return the (cached) serializer for this projection
+     */
+    private AnnotationSerializer getProjection(String projection)
+            throws SherlokException {
+        synchronized (projections) {
+            AnnotationSerializer projected = projections.get(projection);
+            if (projected == null) {
+                projected = serializer
+                        .project(list(projection.split(",")));
+                projections.put(projection, projected);
+            }
+            return projected;
+        }
+    }
+
+    /** Closes the JSON output, appending these stats (if any) */
+    private void finishJson(JsonStreamRewriter writer,
+            Map<String, Object> stats, boolean cacheHit) throws IOException {
+        if (stats == null) {
+            writer.finish(null);
+        } else {
+            if (annotationCache != null) {
+                stats.put("_cache", cacheHit ? "hit" : "miss");
+                stats.put("_cache_hits", annotationCache.getHits());
+                stats.put("_cache_misses", annotationCache.getMisses());
+            }
+            writer.finish(map("_stats", (Object) stats));
+        }
+    }
+
+    /**
+     * Annotates this text, and writes the annotations in UIMA's compressed
+     * binary format (filtered like the JSON output), see
+     * {@link #serializeBinary(CAS, TypeSystem, String, OutputStream)}. Use
+     * {@link BinaryCasDecoder} to read it, with the type system from
+     * {@link #getBinaryTypeSystem()}.
+     * 
+     * @param out
+     *            gets flushed, but not closed.
+     */
+    public void annotateBinary(String text, OutputStream out)
+            throws UIMAException, SherlokException {
+
+        Lease lease = null;
+        Thread thread = Thread.currentThread();
+        ClassLoader previousClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
         try {
-            // TODO how long to wait?
-            cas = casPool.getCas(0);// cas.reset done by casPool
-            // for (TypeDescription td : tsd.getTypes())
-            // LOG.debug("type: {} <<<< {}", td.getName(),
-            // td.getSupertypeName());
-
-            cas.setDocumentText(text);
-            cas.setDocumentLanguage(language);
-
-            LOG.trace("annotating: " + text);
-            SimplePipeline.runPipeline(cas, aes);
-
-            if (LOG.isTraceEnabled()) {
-                FSIterator<Annotation> it = cas.getJCas().getAnnotationIndex()
-                        .iterator();
-                while (it.hasNext()) {
-                    Annotation a = it.next();
-                    StringBuffer sb = new StringBuffer();
-                    a.prettyPrint(2, 2, sb, false);
-                    LOG.trace("'{}'\t{}", a.getCoveredText(), sb.toString()
-                            .replaceAll("[\r\n] *", "\t"));
+            String cacheKey = null;
+            if (annotationCache != null) {
+                cacheKey = AnnotationCache.key(cacheKeyPrefix, "bin", text);
+                byte[] cached = annotationCache.get(cacheKey);
+                if (cached != null) {
+                    out.write(cached);
+                    out.flush();
+                    return;
                 }
             }
 
-            StringWriter sw = new StringWriter();
-            jsonSerializer.serialize(cas, sw);
+            initBinaryTypeSystem();
+            lease = run(text);
+            if (cacheKey != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                serializeBinary(lease.cas, binaryTs, binaryTsHash, bytes);
+                annotationCache.put(cacheKey, bytes.toByteArray());
+                bytes.writeTo(out);
+                out.flush();
+            } else {
+                serializeBinary(lease.cas, binaryTs, binaryTsHash, out);
+            }
 
-            String json = sw.toString();
-            // rename JSON field, for readability
-            json = json.replaceFirst("@cas_feature_structures", "annotations");
-            return json;
+        } catch (IOException io) {
+            throw new SherlokException("Failed to annotate " + text,
+                    this.toString()).setDetails(io.getMessage());
+        } finally {
+            release(lease);
+            thread.setContextClassLoader(previousClassLoader);
+        }
+    }
+
+    /**
+     * @param annotationCache
+     *            where to cache the annotation results, or null to not cache
+     *            them
+     */
+    void setAnnotationCache(AnnotationCache annotationCache) {
+        if (annotationCache != null && annotationCache.isEnabled()) {
+            this.cacheKeyPrefix = AnnotationCache.keyPrefix(pipelineDef,
+                    loaded);
+            this.annotationCache = annotationCache;
+        } else {
+            this.annotationCache = null;
+        }
+    }
+
+    /** Runs the engines of this lease on this text */
+    private void process(Lease lease, String text) throws UIMAException,
+            SherlokException {
+        CAS cas = lease.cas;
+        // for (TypeDescription td : tsd.getTypes())
+        // LOG.debug("type: {} <<<< {}", td.getName(),
+        // td.getSupertypeName());
 
+        cas.setDocumentText(text);
+        cas.setDocumentLanguage(language);
+
+        LOG.trace("annotating: {}", text);
+        // engines (e.g. Ruta, or their libraries) load resources through the
+        // context classloader, also on the chunk executor's threads
+        Thread thread = Thread.currentThread();
+        ClassLoader previousClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            SimplePipeline.runPipeline(cas, lease.aes);
         } catch (AnalysisEngineProcessException aepe) {
             Throwable cause = aepe.getCause();
             if (cause instanceof IllegalArgumentException) {
@@ -381,30 +1269,249 @@ public class UimaPipeline {
             } else {
                 throw aepe;
             }
-        } catch (IOException io) {
-            throw new SherlokException("Failed to annotate " + text,
-                    this.toString()).setDetails(io.getMessage());
         } finally {
-            casPool.releaseCas(cas);
+            thread.setContextClassLoader(previousClassLoader);
+        }
+
+        if (LOG.isTraceEnabled()) {
+            FSIterator<Annotation> it = cas.getJCas().getAnnotationIndex()
+                    .iterator();
+            while (it.hasNext()) {
+                Annotation a = it.next();
+                StringBuffer sb = new StringBuffer();
+                a.prettyPrint(2, 2, sb, false);
+                LOG.trace("'{}'\t{}", a.getCoveredText(), sb.toString()
+                        .replaceAll("[\r\n] *", "\t"));
+            }
         }
     }
 
+    /** Lazily creates the target type system of the binary output */
+    private synchronized void initBinaryTypeSystem() throws UIMAException,
+            IOException {
+        if (binaryTs == null) {
+            CAS cas = casPool.getCas();
+            TypeSystemDescription filteredTsd;
+            try {
+                filteredTsd = filterTypeSystemDescription(pipelineDef
+                        .getOutput().getAnnotationIncludes(), pipelineDef
+                        .getOutput().getAnnotationFilters(),
+                        cas.getTypeSystem());
+            } finally {
+                casPool.releaseCas(cas);
+            }
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try {
+                filteredTsd.toXML(xml);
+            } catch (SAXException e) {
+                throw new IOException(e);
+            }
+            binaryTsdXml = xml.toByteArray();
+            binaryTsHash = BinaryCasDecoder.hash(binaryTsdXml);
+            binaryTs = CasCreationUtils.createCas(filteredTsd, null, null)
+                    .getTypeSystem();
+        }
+    }
+
+    /**
+     * @return the XML descriptor of the type system of the binary output (see
+     *         {@link #annotateBinary(String, OutputStream)}), that clients
+     *         fetch once, and then find by its
+     *         {@link BinaryCasDecoder#hash(byte[])}
+     */
+    public byte[] getBinaryTypeSystem() throws UIMAException, IOException {
+        initBinaryTypeSystem();
+        return binaryTsdXml;
+    }
+
+    /**
+     * Writes the hash of the target type system (see
+     * {@link BinaryCasDecoder#hash(byte[])}), then the CAS in UIMA's
+     * compressed binary format (form 6), only keeping the types and features
+     * of the target type system.
+     */
+    static void serializeBinary(CAS cas, TypeSystem targetTs, String tsHash,
+            OutputStream out) throws IOException,
+            ResourceInitializationException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeUTF(tsHash);
+        Serialization.serializeWithCompression(cas, dos, targetTs);
+        dos.flush();
+    }
+
+    /**
+     * @return a (valid) type system description that only contains the types
+     *         to output, according to these includes or filters (see
+     *         {@link #initSerializer(PipelineOutput, ElasticCasPool)}), their
+     *         supertypes, and
+     *         only the features whose range is kept.
+     */
+    static TypeSystemDescription filterTypeSystemDescription(
+            List<String> includes, List<String> filters, TypeSystem ts) {
+
+        TypeSystemDescription fullTsd = TypeSystemUtil
+                .typeSystem2TypeSystemDescription(ts);
+        if (includes.isEmpty() && filters.isEmpty()) {
+            return fullTsd;
+        }
+        Map<String, TypeDescription> types = map();
+        for (TypeDescription td : fullTsd.getTypes()) {
+            types.put(td.getName(), td);
+        }
+
+        Set<String> kept = set();
+        for (TypeDescription td : fullTsd.getTypes()) {
+            boolean keep = !includes.isEmpty() ? matchesAny(td.getName(),
+                    includes) : !matchesAny(td.getName(), filters);
+            // also keep its supertypes
+            for (String name = td.getName(); keep && name != null
+                    && types.containsKey(name); name = types.get(name)
+                    .getSupertypeName()) {
+                kept.add(name);
+            }
+        }
+
+        TypeSystemDescription filteredTsd = new TypeSystemDescription_impl();
+        for (TypeDescription td : fullTsd.getTypes()) {
+            if (kept.contains(td.getName())) {
+                TypeDescription ftd = filteredTsd.addType(td.getName(),
+                        td.getDescription(), td.getSupertypeName());
+                ftd.setAllowedValues(td.getAllowedValues());
+                for (FeatureDescription fd : td.getFeatures()) {
+                    String range = fd.getRangeTypeName();
+                    String element = fd.getElementType();
+                    if ((!types.containsKey(range) || kept.contains(range))
+                            && (element == null || !types.containsKey(element) //
+                            || kept.contains(element))) {
+                        ftd.addFeature(fd.getName(), fd.getDescription(),
+                                range, element, fd.getMultipleReferencesAllowed());
+                    }
+                }
+            }
+        }
+        return filteredTsd;
+    }
+
+    /**
+     * @return whether this type name matches any of these patterns (either
+     *         full type names, or prefixes ending with '.*')
+     */
+    static boolean matchesAny(String typeName, List<String> patterns) {
+        for (String pattern : patterns) {
+            if (pattern.endsWith(".*")
+                    && typeName.startsWith(pattern.substring(0,
+                            pattern.length() - 2))) {
+                return true;
+            } else if (pattern.equals(typeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Destroys the engines and the CAS pool, and releases the shared engines
+     * and the classloader (see {@link BundleClassLoaders}). If annotations
+     * are still running, this happens once they are done; new ones are
+     * refused.
+     */
     public void close() {
-        for (AnalysisEngine engine : aes) {
-            engine.destroy();
+        boolean idle;
+        synchronized (this) {
+            closed = true;
+            idle = activeLeases == 0;
+        }
+        if (idle) {
+            destroy();
+        }
+    }
+
+    private synchronized void destroy() {
+        if (destroyed) {
+            return;
         }
+        destroyed = true;
+        for (AnalysisEngine[] aes : aesReplicas) {
+            for (AnalysisEngine engine : aes) {
+                engine.destroy();
+            }
+        }
+        aesReplicas.clear();
+        if (casPool != null) { // else failed before creating it
+            casPool.destroy();
+        }
+        for (String key : sharedEngines.values()) {
+            EngineRegistry.release(key);
+        }
+        sharedEngines.clear();
+        BundleClassLoaders.release(classLoader);
     }
 
     public PipelineDef getPipelineDef() {
         return pipelineDef;
     }
 
+    /**
+     * @return how many engine replicas it has, i.e. how many documents it
+     *         annotates simultaneously
+     */
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /** Discards idle CASes, see {@link ElasticCasPool#shrink()} */
+    public void shrinkCasPool() {
+        casPool.shrink();
+    }
+
+    /**
+     * @return the estimated heap this pipeline retains (models, engines, CAS
+     *         pool), without its shared engines, see
+     *         {@link HeapSize#retainedBytes}. Pipelines that reference too many
+     *         objects to walk are estimated from the bytes their loading
+     *         thread allocated instead, an upper bound (it includes garbage).
+     */
+    public long getBytes() {
+        return Math.max(0, bytes);
+    }
+
+    /** @return the loaded instances of this pipeline's shared engines */
+    private List<AnalysisEngine> getSharedEngines() {
+        List<AnalysisEngine> engines = list();
+        for (String key : sharedEngines.values()) {
+            AnalysisEngine engine = EngineRegistry.get(key);
+            if (engine != null) {
+                engines.add(engine);
+            }
+        }
+        return engines;
+    }
+
+    /**
+     * @return this pipeline's share of its shared engines' estimated size
+     *         (each engine's size divided among the pipelines using it)
+     */
+    public synchronized long getSharedEngineBytes() {
+        long shared = 0;
+        for (String key : sharedEngines.values()) {
+            shared += EngineRegistry.getBytes(key)
+                    / Math.max(1, EngineRegistry.getUsers(key));
+        }
+        return shared;
+    }
+
     @Override
     public String toString() {
         return pipelineDef.toString();
     }
 
-    private void initScript(List<String> scriptLines, List<EngineDef> engineDefs)
+    /**
+     * @param replicas
+     *            how many documents the engines should be able to process
+     *            simultaneously
+     */
+    private void initScript(List<String> scriptLines,
+            List<EngineDef> engineDefs, int replicas)
             throws ResourceInitializationException, IOException,
             SherlokException {
 
@@ -428,9 +1535,21 @@ public class UimaPipeline {
                 String engineId = extractEngineId(scriptLine);
 
                 // create ae and write xml descriptor
-                String engineDescription = generateXmlDescriptor(engineId,
-                        engineDefs);
+                Descriptor descriptor = generateXmlDescriptor(engineId,
+                        engineDefs, tsd);
+                String engineDescription = descriptor.name;
                 engineDescriptions.add(engineDescription);
+                loaded.add(descriptor.fingerprint);
+                // load it, or reuse it from another pipeline
+                if (!sharedEngines.containsKey(engineDescription)) {
+                    long allocatedBefore = PipelineCache.allocatedBytes();
+                    String key = EngineRegistry.acquire(descriptor, replicas,
+                            classLoader);
+                    // the registry accounts for it, see getSharedEngineBytes
+                    bytes -= PipelineCache.allocatedBytes() - allocatedBefore;
+                    sharedEngines.put(engineDescription, key);
+                    addUsedTypes(EngineRegistry.getCapabilities(key));
+                }
 
                 // update script line
                 scriptLines.set(i, "Document{-> EXEC(" + engineDescription
@@ -459,33 +1578,45 @@ public class UimaPipeline {
             script = scriptTmp + rest;
         }
 
-        // add types
-        for (TypeDTO t : RutaHelper.parseDeclaredTypes(script)) {
-            // fix type and supertype names (add namespace)
-            String typeName = nameSpace + "." + t.typeName;
-            String supertypeName = t.supertypeName;
-            if (supertypeName.indexOf('.') == -1) {
-                supertypeName = nameSpace + "." + supertypeName;
+        // add types (cached, unless the script changed)
+        TypeSystemDescription declaredTypes = ScriptCache
+                .getDeclaredTypes(script);
+        if (declaredTypes == null) {
+            declaredTypes = parseDeclaredTypes(script, nameSpace);
+            ScriptCache.putDeclaredTypes(script, declaredTypes);
+        }
+        if (usedTypes != null) { // types the script mentions
+            Matcher words = SCRIPT_WORD.matcher(script);
+            while (words.find()) {
+                String word = words.group();
+                usedTypes.add(word);
+                usedTypes.add(word.substring(word.lastIndexOf('.') + 1));
             }
-            LOG.trace("adding type {}::{}", typeName, supertypeName);
-
-            TypeDescription typeD = tsd.addType(typeName, t.description,
-                    supertypeName);
-            for (TypeFeatureDTO f : t.getTypeFeatures()) {
-                LOG.trace("  adding feat {}::{}", f.featureName,
-                        f.getRangeTypeNameCleaned());
-                typeD.addFeature(f.featureName, f.description,
-                        f.getRangeTypeNameCleaned());
+        }
+        for (TypeDescription t : declaredTypes.getTypes()) {
+            LOG.trace("adding type {}::{}", t.getName(),
+                    t.getSupertypeName());
+            if (usedTypes != null) {
+                usedTypes.add(t.getName());
+            }
+            TypeDescription typeD = tsd.addType(t.getName(),
+                    t.getDescription(), t.getSupertypeName());
+            for (FeatureDescription f : t.getFeatures()) {
+                typeD.addFeature(f.getName(), f.getDescription(),
+                        f.getRangeTypeName());
             }
         }
 
-        // write Ruta script to tmp file
+        // write Ruta script to tmp file (unless it did not change)
         // ruta does not like dots
         String scriptName = pipelineDef.getId().replace(".", "_");
         File scriptFile = new File(FileBased.PIPELINE_CACHE_PATH + scriptName
                 + SCRIPT_FILE_EXTENSION);
-        scriptFile.getParentFile().mkdirs();
-        saveString2File(script, scriptFile);
+        if (!ScriptCache.isUpToDate(scriptFile, script)) {
+            scriptFile.getParentFile().mkdirs();
+            saveString2File(script, scriptFile);
+            ScriptCache.setUpToDate(scriptFile, script);
+        }
 
         String[] extensions = { OntoActionExtension.class.getName() };
 
@@ -494,10 +1625,36 @@ public class UimaPipeline {
                 PARAM_RESOURCE_PATHS, FileBased.RUTA_RESOURCES_PATH, //
                 PARAM_DESCRIPTOR_PATHS, FileBased.ENGINE_CACHE_PATH,//
                 PARAM_ADDITIONAL_ENGINES, engineDescriptions,//
+                PARAM_ADDITIONAL_ENGINE_LOADERS,
+                new String[] { EngineRegistry.Loader.class.getName() },//
                 RutaEngine.PARAM_ADDITIONAL_EXTENSIONS, extensions,//
                 PARAM_MAIN_SCRIPT, scriptName));
     }
 
+    /**
+     * @return the types DECLAREd in this Ruta script, with their names (and
+     *         supertype names) in this namespace
+     */
+    static TypeSystemDescription parseDeclaredTypes(String script,
+            String nameSpace) throws SherlokException {
+        TypeSystemDescription types = new TypeSystemDescription_impl();
+        for (TypeDTO t : RutaHelper.parseDeclaredTypes(script)) {
+            // fix type and supertype names (add namespace)
+            String typeName = nameSpace + "." + t.typeName;
+            String supertypeName = t.supertypeName;
+            if (supertypeName.indexOf('.') == -1) {
+                supertypeName = nameSpace + "." + supertypeName;
+            }
+            TypeDescription typeD = types.addType(typeName, t.description,
+                    supertypeName);
+            for (TypeFeatureDTO f : t.getTypeFeatures()) {
+                typeD.addFeature(f.featureName, f.description,
+                        f.getRangeTypeNameCleaned());
+            }
+        }
+        return types;
+    }
+
     /** Extract the engine ID from a "ENGINE $id;" script line */
     private static String extractEngineId(String scriptLine)
             throws SherlokException {
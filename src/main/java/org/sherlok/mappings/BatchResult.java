@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.mappings;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+
+/**
+ * Result for one document of a batch annotation request: either the
+ * annotations (same JSON as a single annotation request, embedded as-is) or an
+ * error.
+ *
+ * @author renaud@apache.org
+ */
+@JsonPropertyOrder(value = { "id", "result", "error" })
+@JsonInclude(NON_NULL)
+public class BatchResult {
+
+    /** The id provided by the client for this document, if any */
+    private Object id;
+    /** Raw JSON annotations, as returned by the pipeline */
+    private String result;
+    private SherlokException error;
+
+    public BatchResult(Object id) {
+        this.id = id;
+    }
+
+    public Object getId() {
+        return id;
+    }
+
+    @JsonRawValue
+    public String getResult() {
+        return result;
+    }
+
+    public BatchResult setResult(String result) {
+        this.result = result;
+        return this;
+    }
+
+    public SherlokException getError() {
+        return error;
+    }
+
+    public BatchResult setError(SherlokException error) {
+        this.error = error;
+        return this;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.mappings;
+
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Client-side decoder for the binary output of Sherlok (when requesting
+ * annotations with <code>Accept: application/x-uima-binary</code>): the hash
+ * of its type system (see {@link #hash(byte[])}), followed by the CAS in
+ * UIMA's compressed binary format. The type system itself is fetched once
+ * (from <code>GET /annotate/:name/typesystem</code>), and
+ * {@link #addTypeSystem(byte[])}ed.<br>
+ * One CAS is reused per type system, so a decoder is not thread-safe, and a
+ * decoded CAS is only valid until the next call to
+ * {@link #decode(InputStream)}.
+ *
+ * @author renaud@apache.org
+ */
+public class BinaryCasDecoder {
+
+    /** Mime type of the binary output */
+    public static final String UIMA_BINARY = "application/x-uima-binary";
+
+    /** k: type system hash */
+    private final Map<String, CAS> casByTypeSystem = map();
+
+    /**
+     * @return the hash that binary responses reference this type system by
+     */
+    public static String hash(byte[] tsdXml) {
+        return Hashing.sha1().hashBytes(tsdXml).toString();
+    }
+
+    /**
+     * @param tsdXml
+     *            a type system descriptor, as served by Sherlok
+     * @return its hash
+     */
+    public String addTypeSystem(byte[] tsdXml) throws IOException {
+        String hash = hash(tsdXml);
+        if (!casByTypeSystem.containsKey(hash)) {
+            try {
+                TypeSystemDescription tsd = UIMAFramework.getXMLParser()
+                        .parseTypeSystemDescription(
+                                new XMLInputSource(new ByteArrayInputStream(
+                                        tsdXml), null));
+                casByTypeSystem.put(hash, CasCreationUtils.createCas(tsd, null, null));
+            } catch (InvalidXMLException | ResourceInitializationException e) {
+                throw new IOException("invalid type system descriptor", e);
+            }
+        }
+        return hash;
+    }
+
+    /** @return whether the type system with this hash was added */
+    public boolean hasTypeSystem(String hash) {
+        return casByTypeSystem.containsKey(hash);
+    }
+
+    /**
+     * @param in
+     *            the raw response from Sherlok. Does not get closed.
+     * @return the decoded {@link CAS}
+     * @throws IOException
+     *             also if its type system was not added (e.g. the pipeline
+     *             changed meanwhile)
+     */
+    public CAS decode(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        String hash = dis.readUTF();
+        CAS cas = casByTypeSystem.get(hash);
+        if (cas == null) {
+            throw new IOException("unknown type system '" + hash
+                    + "', fetch and add it first");
+        }
+        cas.reset();
+        Serialization.deserializeCAS(cas, dis);
+        return cas;
+    }
+
+    /** @see #decode(InputStream) */
+    public CAS decode(byte[] response) throws IOException {
+        return decode(new ByteArrayInputStream(response));
+    }
+
+    /**
+     * @return all annotations of this CAS as a map (key: annotation-type short
+     *         name, like in {@link SherlokResult#getAnnotations()}, value: a
+     *         list of all annotations for that annotation-type)
+     */
+    public static Map<String, List<AnnotationFS>> getAnnotations(CAS cas) {
+        Map<String, List<AnnotationFS>> ret = map();
+        FSIterator<AnnotationFS> it = cas.getAnnotationIndex().iterator();
+        while (it.hasNext()) {
+            AnnotationFS a = it.next();
+            String type = a.getType().getShortName();
+            if (!ret.containsKey(type)) {
+                ret.put(type, list(a));
+            } else {
+                ret.get(type).add(a);
+            }
+        }
+        return ret;
+    }
+}
@@ -51,13 +51,48 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
  */
 // ensure property output order
 @JsonPropertyOrder(value = { "name", "version", "description", "language",
-        "domain", "loadOnStartup", "scriptLines", "config", "output", "tests" }, alphabetic = true)
+        "domain", "loadOnStartup", "replicas", "casPoolMin", "casPoolMax", "chunkSize", "pinned", "scriptLines", "config", "output", "tests" }, alphabetic = true)
 @JsonInclude(NON_DEFAULT)
 public class PipelineDef extends Def {
 
     /** Which language this pipeline works for (ISO code). Defaults to 'en' */
     private String language = "en";
 
+    /**
+     * Set it to load (and warm up, using its {@link #getTests()}) this pipeline
+     * at server startup, rather than on its first request. Defaults to false.
+     */
+    private boolean loadOnStartup = false;
+
+    /**
+     * How many independent copies of this pipeline's engines to create, so
+     * that concurrent requests do not share (non thread-safe) engines. Defaults
+     * to 0, meaning the server-wide default (see
+     * {@link org.sherlok.UimaPipeline#setDefaultReplicas(int)}).
+     */
+    private int replicas = 0;
+
+    /**
+     * How many CASes to keep ready (at least), and how many CASes to create (at
+     * most). Defaults to 0, meaning 1 and the number of replicas (plus one),
+     * respectively.
+     */
+    private int casPoolMin = 0, casPoolMax = 0;
+
+    /**
+     * Set it (in chars) to annotate larger texts in chunks, in parallel. Only
+     * for pipelines whose engines do not need to see the whole text at once
+     * (chunks are split at paragraphs or sentences). Defaults to 0 (no
+     * chunking).
+     */
+    private int chunkSize = 0;
+
+    /**
+     * Set it for critical pipelines, so that they are never evicted from the
+     * {@link org.sherlok.PipelineCache}. Defaults to false.
+     */
+    private boolean pinned = false;
+
     /** The list of engine definitions */
     @JsonProperty("script")
     @JsonSerialize(using = ListSerializer.class)
@@ -80,6 +115,10 @@ public class PipelineDef extends Def {
         @JsonProperty("include_annotations")
         private List<String> annotationIncludes = list();
 
+        /** Whether the JSON output echoes the annotated text */
+        @JsonProperty("include_text")
+        private boolean includeText = true;
+
         public List<String> getAnnotationFilters() {
             return annotationFilters;
         }
@@ -99,6 +138,15 @@ public class PipelineDef extends Def {
             this.annotationIncludes = annotationIncludes;
             return this;
         }
+
+        public boolean isIncludeText() {
+            return includeText;
+        }
+
+        public PipelineOutput setIncludeText(boolean includeText) {
+            this.includeText = includeText;
+            return this;
+        }
     }
 
     /**
@@ -176,6 +224,60 @@ public class PipelineDef extends Def {
         return this;
     }
 
+    public boolean isLoadOnStartup() {
+        return loadOnStartup;
+    }
+
+    public PipelineDef setLoadOnStartup(boolean loadOnStartup) {
+        this.loadOnStartup = loadOnStartup;
+        return this;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public PipelineDef setReplicas(int replicas) {
+        this.replicas = replicas;
+        return this;
+    }
+
+    public int getCasPoolMin() {
+        return casPoolMin;
+    }
+
+    public PipelineDef setCasPoolMin(int casPoolMin) {
+        this.casPoolMin = casPoolMin;
+        return this;
+    }
+
+    public int getCasPoolMax() {
+        return casPoolMax;
+    }
+
+    public PipelineDef setCasPoolMax(int casPoolMax) {
+        this.casPoolMax = casPoolMax;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public PipelineDef setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public PipelineDef setPinned(boolean pinned) {
+        this.pinned = pinned;
+        return this;
+    }
+
     public List<String> getScriptLines() {
         return scriptLines;
     }
@@ -222,6 +324,13 @@ public class PipelineDef extends Def {
             validateArgument(language.length() > 0,
                     "'language' can not be empty");
             validateDomain(domain);
+            validateArgument(replicas >= 0, "'replicas' can not be negative");
+            validateArgument(casPoolMin >= 0 && casPoolMax >= 0,
+                    "'casPoolMin' and 'casPoolMax' can not be negative");
+            validateArgument(casPoolMax == 0 || casPoolMin <= casPoolMax,
+                    "'casPoolMin' can not be larger than 'casPoolMax'");
+            validateArgument(chunkSize == 0 || chunkSize >= 100,
+                    "'chunkSize' should be at least 100 chars");
 
             // output
             validateArgument(
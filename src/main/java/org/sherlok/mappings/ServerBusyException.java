@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.mappings;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Thrown when the server is too busy to handle a request in time (e.g. no
+ * engines or CAS became available). Clients should retry later, see
+ * {@link #getRetryAfter()}.
+ * 
+ * @author renaud@apache.org
+ */
+public class ServerBusyException extends SherlokException {
+    private static final long serialVersionUID = -4013870436124577163L;
+
+    /** in seconds */
+    private final int retryAfter;
+
+    public ServerBusyException(String message, String object, int retryAfter) {
+        super(message, object);
+        this.retryAfter = retryAfter;
+    }
+
+    /** @return after how many seconds the client should retry */
+    @JsonIgnore
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
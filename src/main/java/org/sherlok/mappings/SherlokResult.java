@@ -118,9 +118,15 @@ public class SherlokResult {
         return getAnnotations().get(type);
     }
 
-    /** @return the text that was annotated. */
+    /**
+     * @return the text that was annotated, or null if the pipeline does not
+     *         output it
+     */
     @JsonIgnore
     public String getText() {
+        if (referencedFss == null || !referencedFss.containsKey(1)) {
+            return null;
+        }
         return referencedFss.get(1).getProperty("sofaString").toString();
     }
 
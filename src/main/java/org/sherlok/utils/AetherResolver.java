@@ -20,27 +20,44 @@ import static org.sherlok.utils.Create.list;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
 import org.eclipse.aether.DefaultRepositorySystemSession;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.connector.basic.BasicRepositoryConnectorFactory;
+import org.eclipse.aether.graph.Dependency;
 import org.eclipse.aether.graph.DependencyNode;
 import org.eclipse.aether.graph.DependencyVisitor;
 import org.eclipse.aether.impl.DefaultServiceLocator;
 import org.eclipse.aether.repository.LocalRepository;
 import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
 import org.eclipse.aether.spi.connector.RepositoryConnectorFactory;
 import org.eclipse.aether.spi.connector.transport.TransporterFactory;
 import org.eclipse.aether.transport.file.FileTransporterFactory;
 import org.eclipse.aether.transport.http.HttpTransporterFactory;
 import org.slf4j.Logger;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * A helper to boot the repository system and a repository system session.
  * 
@@ -53,6 +70,166 @@ public class AetherResolver {
     public static final String LOCAL_REPO_PATH = RUNTIME_DIR_PATH
             + "local_repo/";
 
+    /** How many artifacts get downloaded in parallel, by all pipelines */
+    static final int DOWNLOAD_THREADS = 4;
+    private static final ExecutorService DOWNLOAD_EXECUTOR = Executors
+            .newFixedThreadPool(DOWNLOAD_THREADS, new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("sherlok-download-%d")
+                    .build());
+    /**
+     * Artifacts being resolved (key: their coordinates, and the repositories
+     * they are resolved from), so that concurrent pipeline loads download each
+     * artifact once
+     */
+    private static final ConcurrentMap<String, Future<Artifact>> RESOLVING = new ConcurrentHashMap<String, Future<Artifact>>();
+
+    /** Shared by all pipeline loads, see {@link #getRepositorySystem()} */
+    private static RepositorySystem system;
+    private static RepositorySystemSession session;
+    /** Where the session stores artifacts, see {@link #setLocalRepoPath} */
+    private static String localRepoPath = LOCAL_REPO_PATH;
+
+    /** Whether to only resolve from the local repositories */
+    private static boolean offline = false;
+
+    /**
+     * @param offline
+     *            to only resolve artifacts from {@link #LOCAL_REPO_PATH} and
+     *            ~/.m2 (see {@link #localRepo}), without ever connecting to
+     *            remote repositories (e.g. on servers without internet
+     *            access)
+     */
+    public static synchronized void setOffline(boolean offline) {
+        AetherResolver.offline = offline;
+        session = null; // recreated on next use
+    }
+
+    public static synchronized boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @param path
+     *            where to store the resolved artifacts, instead of
+     *            {@link #LOCAL_REPO_PATH} (e.g. a temporary directory, in
+     *            tests)
+     */
+    static synchronized void setLocalRepoPath(String path) {
+        localRepoPath = path;
+        session = null; // recreated on next use
+    }
+
+    /** @return the (long-lived) repository system, shared by all loads */
+    public static synchronized RepositorySystem getRepositorySystem() {
+        if (system == null) {
+            system = newRepositorySystem();
+        }
+        return system;
+    }
+
+    /**
+     * @return the (long-lived, read-only) session on
+     *         {@link #LOCAL_REPO_PATH}, shared by all loads. Its cache is
+     *         shared as well, so that POMs are only read once.
+     */
+    public static synchronized RepositorySystemSession getSession() {
+        if (session == null) {
+            DefaultRepositorySystemSession s = newRepositorySystemSession(
+                    getRepositorySystem(), localRepoPath);
+            s.setOffline(offline);
+            // offline, ~/.m2 (a file:// "remote" repository) is still allowed
+            s.setConfigProperty("aether.offline.protocols", "file");
+            s.setReadOnly();
+            session = s;
+        }
+        return session;
+    }
+
+    /**
+     * Resolves (downloads) these dependencies in parallel, on a bounded pool
+     * shared by all pipelines. An artifact already being resolved for another
+     * pipeline (from the same repositories) is waited for, not downloaded
+     * again. Resolved artifacts are
+     * also copied to the local ~/.m2 repository (see {@link #localRepo}).
+     * 
+     * @return the resolved artifacts, in the same order
+     */
+    public static List<Artifact> resolve(List<Dependency> dependencies,
+            final List<RemoteRepository> repos)
+            throws ArtifactResolutionException, IOException {
+
+        List<Future<Artifact>> resolving = list();
+        for (Dependency dependency : dependencies) {
+            final Artifact artifact = dependency.getArtifact();
+            final String key = artifact + " from " + repos;
+            FutureTask<Artifact> task = new FutureTask<Artifact>(
+                    new Callable<Artifact>() {
+                        @Override
+                        public Artifact call() throws Exception {
+                            try {
+                                Artifact resolved = getRepositorySystem()
+                                        .resolveArtifact(
+                                                getSession(),
+                                                new ArtifactRequest(artifact,
+                                                        repos, ""))
+                                        .getArtifact();
+                                copyToLocalRepo(resolved.getFile());
+                                return resolved;
+                            } finally {
+                                RESOLVING.remove(key);
+                            }
+                        }
+                    });
+            Future<Artifact> existing = RESOLVING.putIfAbsent(key, task);
+            if (existing == null) {
+                DOWNLOAD_EXECUTOR.execute(task);
+                resolving.add(task);
+            } else {
+                LOG.trace("waiting for artifact '{}', already resolving", key);
+                resolving.add(existing);
+            }
+        }
+
+        List<Artifact> resolved = list();
+        for (Future<Artifact> f : resolving) {
+            try {
+                resolved.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while resolving artifacts");
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(),
+                        ArtifactResolutionException.class);
+                Throwables.propagateIfInstanceOf(e.getCause(),
+                        IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        return resolved;
+    }
+
+    /** Adds this artifact to the local ~/.m2/repository, if possible */
+    private static void copyToLocalRepo(File jar) throws IOException {
+        if (localRepo.exists() && localRepo.canWrite()) {
+            String sherlokRepo;
+            synchronized (AetherResolver.class) {
+                sherlokRepo = new File(localRepoPath).getCanonicalPath();
+            }
+            String canonicalPath = jar.getCanonicalPath();
+            if (!canonicalPath.startsWith(sherlokRepo)) {
+                return; // e.g. resolved from ~/.m2 itself
+            }
+            String relative = canonicalPath.substring(sherlokRepo.length(),
+                    canonicalPath.length());
+            File localRepoFile = new File(localRepo, relative);
+            if (!localRepoFile.exists()) {
+                LOG.trace("artifact '{}' added to local maven repo",
+                        jar.getName());
+                FileUtils.copyFile(jar, localRepoFile);
+            }
+        }
+    }
+
     public static RepositorySystem newRepositorySystem() {
         DefaultServiceLocator locator = MavenRepositorySystemUtils
                 .newServiceLocator();
@@ -94,6 +271,10 @@ public class AetherResolver {
     public static File localRepo = new File(System.getProperty("user.home")
             + "/.m2/repository/");
 
+    /**
+     * @return ~/.m2 (if it exists), Maven central and these repositories.
+     *         Only ~/.m2 when {@link #isOffline()}.
+     */
     public static List<RemoteRepository> newRepositories(
             RepositorySystem system, RepositorySystemSession session,
             Map<String, String> otherRepos) throws MalformedURLException {
@@ -103,6 +284,9 @@ public class AetherResolver {
             repos.add(new RemoteRepository.Builder("local_default", "default",
                     localRepo.toURI().toURL().toString()).build());
         }
+        if (isOffline()) {
+            return repos;
+        }
         // Maven central
         repos.add(new RemoteRepository.Builder("central", "default",
                 "http://central.maven.org/maven2/").build());
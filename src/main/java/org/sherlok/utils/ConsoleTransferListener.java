@@ -82,7 +82,9 @@ public class ConsoleTransferListener extends AbstractTransferListener {
             if (duration > 0) {
                 long bytes = contentLength - resource.getResumeOffset();
                 double kbPerSec = (bytes / 1024.0) / (duration / 1000.0);
-                throughput = " at " + FORMAT.format(kbPerSec) + " KB/sec";
+                synchronized (FORMAT) { // downloads run in parallel
+                    throughput = " at " + FORMAT.format(kbPerSec) + " KB/sec";
+                }
             }
             LOG.info("downloaded! " + shortName(resource) + " (" + len
                     + throughput + ")");
@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static org.sherlok.utils.Create.list;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the heap that objects retain: the (shallow) size of every object
+ * reachable from them through instance fields and array elements, each
+ * counted once. Static fields, classes, classloaders and threads are not
+ * followed, so that global state is not charged to whoever references it.
+ * Does not force a garbage collection, and is not disturbed by what other
+ * threads allocate.
+ *
+ * @author renaud@apache.org
+ */
+public class HeapSize {
+
+    /**
+     * Max nr of objects walked, to bound the time and memory (the set of
+     * walked objects) an estimate takes
+     */
+    public static final int MAX_OBJECTS = 4 * 1000 * 1000;
+
+    private static final boolean IS_64 = "64".equals(System
+            .getProperty("sun.arch.data.model"));
+    /** HotSpot compresses references below 32Gb of heap, by default */
+    private static final boolean COMPRESSED = !IS_64
+            || Runtime.getRuntime().maxMemory() < 32l * 1024 * 1024 * 1024;
+    private static final int REFERENCE = COMPRESSED ? 4 : 8;
+    private static final int OBJECT_HEADER = IS_64 ? (COMPRESSED ? 12 : 16)
+            : 8;
+    private static final int ARRAY_HEADER = OBJECT_HEADER + 4;
+    private static final int ALIGNMENT = 8;
+
+    /** Layout of a class: its shallow size, and its reference fields */
+    private static class ClassInfo {
+        private long shallowBytes;
+        private final List<Field> references = list();
+        /** false if its fields can not be read, e.g. JDK internals */
+        private boolean accessible = true;
+    }
+
+    private final Set<Object> seen = Collections
+            .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private final Map<Class<?>, ClassInfo> classes = new IdentityHashMap<Class<?>, ClassInfo>();
+
+    private HeapSize() {
+    }
+
+    /**
+     * @param root
+     *            the object whose retained size to estimate
+     * @param excluded
+     *            objects (and what only they reference) not to count, e.g.
+     *            because they are shared with others
+     * @return the estimated retained size of root (in bytes), or -1 if more
+     *         than {@link #MAX_OBJECTS} objects are reachable from it
+     */
+    public static long retainedBytes(Object root, Object... excluded) {
+        HeapSize heapSize = new HeapSize();
+        for (Object e : excluded) {
+            if (e != null) {
+                heapSize.seen.add(e);
+            }
+        }
+        return heapSize.walk(root);
+    }
+
+    private long walk(Object root) {
+        long bytes = 0;
+        Deque<Object> todo = new ArrayDeque<Object>();
+        todo.push(root);
+        while (!todo.isEmpty()) {
+            Object o = todo.pop();
+            if (isSkipped(o) || !seen.add(o)) {
+                continue;
+            }
+            if (seen.size() > MAX_OBJECTS) {
+                return -1;
+            }
+
+            Class<?> clazz = o.getClass();
+            if (clazz.isArray()) {
+                Class<?> component = clazz.getComponentType();
+                int length = Array.getLength(o);
+                if (component.isPrimitive()) {
+                    bytes += align(ARRAY_HEADER + (long) length
+                            * primitiveBytes(component));
+                } else {
+                    bytes += align(ARRAY_HEADER + (long) length * REFERENCE);
+                    for (Object element : (Object[]) o) {
+                        if (element != null) {
+                            todo.push(element);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            ClassInfo info = classInfo(clazz);
+            bytes += info.shallowBytes;
+            if (info.accessible) {
+                for (Field f : info.references) {
+                    try {
+                        Object value = f.get(o);
+                        if (value != null) {
+                            todo.push(value);
+                        }
+                    } catch (IllegalAccessException e) { // setAccessible'd
+                        throw new IllegalStateException(e);
+                    }
+                }
+            } else { // use public APIs instead, for the most common ones
+                bytes += addPublicContent(o, todo);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the content of objects whose fields can not be read (the JDK
+     * hides them on Java 9+)
+     */
+    private static long addPublicContent(Object o, Deque<Object> todo) {
+        try {
+            if (o instanceof String) {
+                return align(ARRAY_HEADER + ((String) o).length() * 2l);
+            } else if (o instanceof Collection) {
+                Collection<?> collection = (Collection<?>) o;
+                for (Object element : collection) {
+                    if (element != null) {
+                        todo.push(element);
+                    }
+                }
+                // backing array, or entries
+                return align(ARRAY_HEADER + collection.size() * 2l * REFERENCE);
+            } else if (o instanceof Map) {
+                Map<?, ?> m = (Map<?, ?>) o;
+                for (Map.Entry<?, ?> e : m.entrySet()) {
+                    if (e.getKey() != null) {
+                        todo.push(e.getKey());
+                    }
+                    if (e.getValue() != null) {
+                        todo.push(e.getValue());
+                    }
+                }
+                // table, and entries
+                return align(ARRAY_HEADER + m.size() * 2l * REFERENCE)
+                        + m.size() * align(OBJECT_HEADER + 4 + 3 * REFERENCE);
+            }
+        } catch (RuntimeException e) { // e.g. modified meanwhile
+        }
+        return 0;
+    }
+
+    /** Not followed: global, or not owned by whoever references them */
+    private static boolean isSkipped(Object o) {
+        return o instanceof Class || o instanceof ClassLoader
+                || o instanceof Thread || o instanceof ThreadGroup;
+    }
+
+    private ClassInfo classInfo(Class<?> clazz) {
+        ClassInfo info = classes.get(clazz);
+        if (info != null) {
+            return info;
+        }
+        info = new ClassInfo();
+        long fieldBytes = 0;
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) {
+                    continue;
+                }
+                if (f.getType().isPrimitive()) {
+                    fieldBytes += primitiveBytes(f.getType());
+                } else {
+                    fieldBytes += REFERENCE;
+                    if (info.accessible) {
+                        try {
+                            f.setAccessible(true);
+                            info.references.add(f);
+                        } catch (RuntimeException e) { // e.g. Java 9+ modules
+                            info.accessible = false;
+                        }
+                    }
+                }
+            }
+        }
+        info.shallowBytes = align(OBJECT_HEADER + fieldBytes);
+        classes.put(clazz, info);
+        return info;
+    }
+
+    private static int primitiveBytes(Class<?> type) {
+        if (type == boolean.class || type == byte.class) {
+            return 1;
+        } else if (type == char.class || type == short.class) {
+            return 2;
+        } else if (type == long.class || type == double.class) {
+            return 8;
+        }
+        return 4; // int, float
+    }
+
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Rewrites a JSON object while it is being written, without buffering it:
+ * appends extra fields (e.g. '_stats') right before the closing brace (see
+ * {@link #finish(Map)}).
+ *
+ * @author renaud@apache.org
+ */
+public class JsonStreamRewriter extends FilterWriter {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** a '}' and the whitespace that follows it, held back until we know it
+     * is not the final one */
+    private final StringBuilder tail = new StringBuilder();
+    /** the last non-whitespace char written, '{' if the object is empty */
+    private char last;
+
+    /**
+     * @param out
+     *            the underlying writer
+     */
+    public JsonStreamRewriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        hold((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            hold(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            hold(str.charAt(i));
+        }
+    }
+
+    /** holds back the last '}' */
+    private void hold(char c) throws IOException {
+        if (tail.length() > 0) {
+            if (Character.isWhitespace(c)) {
+                tail.append(c);
+                return;
+            }
+            out.append(tail);
+            tail.setLength(0);
+            last = '}';
+        }
+        if (c == '}') {
+            tail.append(c);
+        } else {
+            out.write(c);
+            if (!Character.isWhitespace(c)) {
+                last = c;
+            }
+        }
+    }
+
+    /**
+     * Appends these fields to the JSON object (if any), closes it and flushes
+     * the underlying writer. Does not close it.
+     */
+    public void finish(Map<String, Object> extraFields) throws IOException {
+        if (tail.length() == 0) { // not a JSON object, leave it as is
+            out.flush();
+            return;
+        }
+        // compact, so that the output stays on one line (e.g. for NDJSON)
+        if (extraFields != null) {
+            boolean empty = last == '{';
+            for (Map.Entry<String, Object> field : extraFields.entrySet()) {
+                if (!empty) {
+                    out.write(",");
+                }
+                empty = false;
+                out.write(MAPPER.writeValueAsString(field.getKey()));
+                out.write(":");
+                out.write(MAPPER.writeValueAsString(field.getValue()));
+            }
+        }
+        out.write("}");
+        tail.setLength(0);
+        out.flush();
+    }
+}
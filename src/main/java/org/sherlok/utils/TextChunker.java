@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static org.sherlok.utils.Create.list;
+
+import java.util.List;
+
+/**
+ * Splits large texts into chunks, at paragraph or sentence boundaries if
+ * possible, so that they can be annotated separately.
+ *
+ * @author renaud@apache.org
+ */
+public class TextChunker {
+
+    /**
+     * @param text
+     *            the text to split
+     * @param chunkSize
+     *            the maximum size of a chunk (in chars)
+     * @return the end offsets (exclusive) of each chunk; the last one is the
+     *         text length
+     */
+    public static List<Integer> split(String text, int chunkSize) {
+        if (chunkSize < 2) {
+            throw new IllegalArgumentException(
+                    "chunk size must be at least 2, but was " + chunkSize);
+        }
+        List<Integer> ends = list();
+        int start = 0;
+        while (text.length() - start > chunkSize) {
+            int end = findBoundary(text, start + chunkSize / 2, start
+                    + chunkSize);
+            ends.add(end);
+            start = end;
+        }
+        ends.add(text.length());
+        return ends;
+    }
+
+    /**
+     * @return the best chunk end in [from, to]: after a paragraph break, else
+     *         after a sentence end, else after a whitespace, else 'to'.
+     */
+    private static int findBoundary(String text, int from, int to) {
+        // paragraph: an empty line
+        for (int i = to; i > from; i--) {
+            if (text.charAt(i - 1) == '\n' && isEmptyLineBefore(text, i - 1)) {
+                return i;
+            }
+        }
+        // sentence: punctuation, then a whitespace
+        for (int i = to; i > from + 1; i--) {
+            char c = text.charAt(i - 2);
+            if ((c == '.' || c == '!' || c == '?')
+                    && Character.isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+        // whitespace
+        for (int i = to; i > from; i--) {
+            if (Character.isWhitespace(text.charAt(i - 1))) {
+                return i;
+            }
+        }
+        // hard cut, but not within a surrogate pair
+        return Character.isHighSurrogate(text.charAt(to - 1)) ? to - 1 : to;
+    }
+
+    /** @return whether the line ending at this newline is blank */
+    private static boolean isEmptyLineBefore(String text, int newline) {
+        for (int i = newline - 1; i >= 0; i--) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                return true;
+            } else if (!Character.isWhitespace(c)) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.sherlok.utils.Create.list;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import org.sherlok.AnnotationCache.CopyingWriter;
+import org.sherlok.mappings.PipelineDef;
+
+import com.google.common.io.Files;
+
+public class AnnotationCacheTest {
+
+    @Test
+    public void testLruEviction() {
+        AnnotationCache cache = new AnnotationCache(100, null);
+        cache.put("p:1/h/json_a", new byte[10]);
+        cache.put("p:1/h/json_b", new byte[10]);
+        cache.put("p:1/h/json_c", new byte[11]);
+        assertNull("too large to be cached", cache.get("p:1/h/json_c"));
+
+        for (int i = 0; i < 9; i++) {
+            cache.get("p:1/h/json_a"); // keep 'a' recently used
+            cache.put("p:1/h/json_" + i, new byte[10]);
+        }
+        assertNotNull(cache.get("p:1/h/json_a"));
+        assertNull("evicted", cache.get("p:1/h/json_b"));
+        assertEquals(100, cache.getBytes());
+    }
+
+    @Test
+    public void testDiskAndInvalidation() {
+        File dir = Files.createTempDir();
+        String key = AnnotationCache.key("p:1/h", "json", "some text");
+        new AnnotationCache(100, dir).put(key, new byte[] { 1, 2, 3 });
+
+        AnnotationCache restarted = new AnnotationCache(100, dir);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, restarted.get(key));
+        assertEquals(1, restarted.getHits());
+
+        restarted.invalidate("p:1");
+        assertNull(restarted.get(key));
+        assertNull(new AnnotationCache(100, dir).get(key));
+        assertEquals(1, restarted.getMisses());
+    }
+
+    @Test
+    public void testDiskEviction() throws Exception {
+        File dir = Files.createTempDir();
+        AnnotationCache cache = new AnnotationCache(1000, dir, 110);
+        String a = AnnotationCache.key("p:1/h", "json", "a");
+        cache.put(a, new byte[40]);
+        new File(dir, a).setLastModified(1000); // least recently used
+        String b = AnnotationCache.key("p:1/h", "json", "b");
+        cache.put(b, new byte[40]);
+        assertEquals(80, cache.getDiskBytes());
+
+        cache.put(AnnotationCache.key("p:1/h", "json", "c"), new byte[40]);
+        assertEquals("down to 3/4 of the budget", 80, cache.getDiskBytes());
+        AnnotationCache restarted = new AnnotationCache(1000, dir, 110);
+        assertNull("evicted", restarted.get(a));
+        assertNotNull(restarted.get(b));
+        assertEquals(cache.getDiskBytes(), restarted.getDiskBytes());
+
+        restarted.invalidateAll();
+        assertEquals(0, restarted.getDiskBytes());
+    }
+
+    @Test
+    public void testKeyPrefix() {
+        PipelineDef pd = (PipelineDef) new PipelineDef().setName("p")
+                .setVersion("1");
+        String prefix = AnnotationCache.keyPrefix(pd, list("deps", "engine"));
+        assertTrue(prefix.startsWith("p:1/"));
+        assertEquals(prefix,
+                AnnotationCache.keyPrefix(pd, list("deps", "engine")));
+        assertNotEquals("other engine version", prefix,
+                AnnotationCache.keyPrefix(pd, list("deps", "engine2")));
+    }
+
+    @Test
+    public void testCopyingWriter() throws Exception {
+        StringWriter sw = new StringWriter();
+        CopyingWriter w = new CopyingWriter(sw, 5);
+        w.write("abc");
+        assertEquals("abc", new String(w.getCopy(), "UTF-8"));
+        w.write("def");
+        w.write("g");
+        assertNull("too large", w.getCopy());
+        assertEquals("abcdefg", sw.toString());
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.set;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.sherlok.mappings.JsonAnnotation;
+import org.sherlok.mappings.SherlokException;
+import org.sherlok.mappings.SherlokResult;
+
+public class AnnotationSerializerTest {
+
+    private static final List<String> NONE = new ArrayList<String>();
+
+    private CAS cas;
+
+    @Before
+    public void before() throws Exception {
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType("org.test.Bar", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.test.SubBar", "", "org.test.Bar");
+        tsd.addType("org.test.Foo", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.getType("org.test.Foo").addFeature("bar", "", "org.test.Bar");
+        tsd.getType("org.test.Foo").addFeature("label", "",
+                CAS.TYPE_NAME_STRING);
+        tsd.getType("org.test.Foo").addFeature("score", "",
+                CAS.TYPE_NAME_DOUBLE);
+        cas = CasCreationUtils.createCas(tsd, null, null);
+        cas.setDocumentText("foo bar \"baz\"");
+        TypeSystem ts = cas.getTypeSystem();
+
+        Type foo = ts.getType("org.test.Foo");
+        AnnotationFS bar = cas.createAnnotation(ts.getType("org.test.Bar"),
+                4, 7);
+        cas.addFsToIndexes(bar);
+        cas.addFsToIndexes(cas.createAnnotation(
+                ts.getType("org.test.SubBar"), 8, 13));
+        AnnotationFS fooA = cas.createAnnotation(foo, 0, 3);
+        fooA.setFeatureValue(foo.getFeatureByBaseName("bar"), bar);
+        fooA.setStringValue(foo.getFeatureByBaseName("label"), "a \"label\"");
+        fooA.setDoubleValue(foo.getFeatureByBaseName("score"), 0.5);
+        cas.addFsToIndexes(fooA);
+    }
+
+    private SherlokResult serialize(List<String> includes,
+            List<String> filters, boolean includeText, boolean prettyPrint)
+            throws Exception {
+        StringWriter sw = new StringWriter();
+        new AnnotationSerializer(cas.getTypeSystem(), includes, filters,
+                includeText).serialize(cas, sw, prettyPrint);
+        return SherlokResult.parse(sw.toString());
+    }
+
+    @Test
+    public void testAllTypes() throws Exception {
+        SherlokResult result = serialize(NONE, NONE, true, false);
+        assertEquals("foo bar \"baz\"", result.getText());
+
+        Map<String, List<JsonAnnotation>> annots = result.getAnnotations();
+        assertEquals(1, annots.get("DocumentAnnotation").size());
+        assertEquals("subtypes are not listed with their supertype", 1,
+                annots.get("Bar").size());
+        assertEquals(8, annots.get("SubBar").get(0).getBegin());
+
+        JsonAnnotation fooA = annots.get("Foo").get(0);
+        assertEquals(0, fooA.getBegin());
+        assertEquals(3, fooA.getEnd());
+        assertEquals("a \"label\"", fooA.getProperty("label"));
+        assertEquals(0.5, fooA.getProperty("score"));
+        assertFalse(fooA.getProperties().containsKey("sofa"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> bar = (Map<String, Object>) fooA
+                .getProperty("bar");
+        assertEquals("Bar", bar.get("_type"));
+        assertEquals(4, bar.get("begin"));
+        assertEquals(7, bar.get("end"));
+    }
+
+    @Test
+    public void testIncludesAndFilters() throws Exception {
+        Map<String, List<JsonAnnotation>> annots = serialize(
+                list("org.test.Foo"), NONE, true, true).getAnnotations();
+        assertEquals(list("Foo"), list(annots.keySet()));
+        assertTrue("referenced annotations are still written", annots
+                .get("Foo").get(0).getProperties().containsKey("bar"));
+
+        annots = serialize(NONE, list("org.test.*", "uima.tcas.*"), true,
+                false).getAnnotations();
+        assertTrue(annots.isEmpty());
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        AnnotationSerializer serializer = new AnnotationSerializer(
+                cas.getTypeSystem(), NONE, list("org.test.Bar"), true);
+        StringWriter sw = new StringWriter();
+        serializer.project(list("Foo", "org.test.*"))
+                .serialize(cas, sw, false);
+        Map<String, List<JsonAnnotation>> annots = SherlokResult.parse(
+                sw.toString()).getAnnotations();
+        assertEquals(set("Foo", "SubBar"), annots.keySet());
+
+        try {
+            serializer.project(list("Bar"));
+            fail("Bar is filtered by the pipeline");
+        } catch (SherlokException e) { // expected
+        }
+    }
+
+    @Test
+    public void testWithoutText() throws Exception {
+        SherlokResult result = serialize(NONE, NONE, false, false);
+        assertNull(result.getText());
+        assertEquals(1, result.get("Foo").size());
+    }
+}
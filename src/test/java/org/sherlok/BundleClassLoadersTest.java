@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.set;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+import org.sherlok.mappings.BundleDef;
+import org.sherlok.mappings.BundleDef.BundleDependency;
+import org.sherlok.mappings.BundleDef.BundleDependency.DependencyType;
+
+import com.google.common.io.Files;
+
+public class BundleClassLoadersTest {
+
+    private static final String RESOURCE = "org/sherlok/test/bundle.txt";
+
+    private static File jar(String name) throws Exception {
+        File jar = new File(Files.createTempDir(), name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(
+                jar))) {
+            zip.putNextEntry(new ZipEntry(RESOURCE));
+            zip.write("bundle".getBytes());
+            zip.closeEntry();
+        }
+        return jar;
+    }
+
+    private static Set<BundleDef> bundles(String dependency) {
+        return set((BundleDef) new BundleDef()
+                .addDependency(
+                        new BundleDependency(DependencyType.mvn, dependency))
+                .setName("b" + System.nanoTime()).setVersion("1"));
+    }
+
+    @Test
+    public void testShareAndRelease() throws Exception {
+        File jar = jar("bundle-test-1.0.jar");
+        Set<BundleDef> bundles = bundles("org.test:bundle-test:1.0");
+
+        ClassLoader loader = BundleClassLoaders.acquire(bundles, list(jar));
+        assertSame(loader, BundleClassLoaders.acquire(bundles, list(jar)));
+        assertEquals(2, BundleClassLoaders.getUsers(loader));
+        assertNotNull(loader.getResource(RESOURCE));
+        assertNull("not on Sherlok's classpath",
+                BundleClassLoaders.BASE.getResource(RESOURCE));
+
+        BundleClassLoaders.release(loader);
+        assertEquals(1, BundleClassLoaders.getUsers(loader));
+        BundleClassLoaders.release(loader);
+        assertEquals(0, BundleClassLoaders.getUsers(loader));
+
+        // closed, the next pipeline gets a new one
+        ClassLoader reloaded = BundleClassLoaders.acquire(bundles, list(jar));
+        assertNotSame(loader, reloaded);
+        BundleClassLoaders.release(reloaded);
+    }
+
+    @Test
+    public void testOtherBundles() throws Exception {
+        File jar = jar("bundle-other-1.0.jar");
+        ClassLoader a = BundleClassLoaders.acquire(
+                bundles("org.test:bundle-other:1.0"), list(jar));
+        ClassLoader b = BundleClassLoaders.acquire(
+                bundles("org.test:bundle-other:1.0"), list(jar));
+        assertNotSame(a, b);
+        BundleClassLoaders.release(a);
+        BundleClassLoaders.release(b);
+    }
+
+    @Test
+    public void testNothingToLoad() throws Exception {
+        assertSame(BundleClassLoaders.BASE, BundleClassLoaders.acquire(
+                bundles("org.test:empty:1.0"), list(new File[0])));
+        BundleClassLoaders.release(BundleClassLoaders.BASE); // no-op
+    }
+}
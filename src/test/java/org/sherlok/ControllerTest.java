@@ -17,8 +17,13 @@ package org.sherlok;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.sherlok.utils.Create.list;
+
+import java.util.ArrayList;
 
 import org.junit.Test;
+import org.sherlok.mappings.BundleDef;
 import org.sherlok.mappings.BundleDef.EngineDef;
 import org.sherlok.mappings.PipelineDef;
 
@@ -40,4 +45,27 @@ public class ControllerTest {
 
         // TODO more validation
     }
+
+    @Test
+    public void testLatestPipelineVersion() throws Exception {
+        Controller controller = new Controller()._load(
+                new ArrayList<BundleDef>(), list(pipeline("p", "1.2.2"),
+                        pipeline("p", "1.22"), pipeline("p", "1.3"),
+                        pipeline("other", "2")));
+        assertEquals("1.22", controller.getLatestPipelineVersion("p"));
+        assertEquals("2", controller.getLatestPipelineVersion("other"));
+        assertNull(controller.getLatestPipelineVersion("missing"));
+
+        Controller.Registry before = controller.registry;
+        controller._load(new ArrayList<BundleDef>(),
+                list(pipeline("p", "1.3")));
+        assertEquals("1.3", controller.getLatestPipelineVersion("p"));
+        assertEquals("snapshots are immutable", "1.22",
+                before.getLatestVersion("p"));
+    }
+
+    private static PipelineDef pipeline(String name, String version) {
+        return (PipelineDef) new PipelineDef().setName(name).setVersion(
+                version);
+    }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.set;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.sherlok.mappings.BundleDef;
+import org.sherlok.mappings.BundleDef.BundleDependency;
+import org.sherlok.mappings.BundleDef.BundleDependency.DependencyType;
+
+import com.google.common.io.Files;
+
+public class DependencyLockfileTest {
+
+    private static BundleDef bundle(String dependency) {
+        return (BundleDef) new BundleDef().addDependency(
+                new BundleDependency(DependencyType.mvn, dependency))
+                .setName("b" + System.nanoTime()).setVersion("1");
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        File dir = Files.createTempDir();
+        File a = new File(dir, "a.jar"), b = new File(dir, "b.jar");
+        Files.write("a".getBytes(), a);
+        Files.write("b".getBytes(), b);
+        BundleDef bundle = bundle("org.test:a:1");
+        Set<BundleDef> bundles = set(bundle);
+        assertNull(DependencyLockfile.read(bundles));
+
+        Map<String, File> artifacts = new LinkedHashMap<String, File>();
+        artifacts.put("org.test:a:jar:1", a);
+        artifacts.put("org.test:b:jar:1", b);
+        DependencyLockfile.write(bundles, artifacts);
+        assertEquals(list(a.getAbsoluteFile(), b.getAbsoluteFile()),
+                DependencyLockfile.read(bundles));
+
+        // changing the bundle invalidates its lockfile
+        bundle.addDependency(new BundleDependency(DependencyType.mvn,
+                "org.test:c:1"));
+        assertNull(DependencyLockfile.read(bundles));
+    }
+
+    @Test
+    public void testChangedJar() throws Exception {
+        File jar = new File(Files.createTempDir(), "a.jar");
+        Files.write("a".getBytes(), jar);
+        Set<BundleDef> bundles = set(bundle("org.test:a:1"));
+        Map<String, File> artifacts = new LinkedHashMap<String, File>();
+        artifacts.put("org.test:a:jar:1", jar);
+        DependencyLockfile.write(bundles, artifacts);
+
+        Files.write("changed".getBytes(), jar);
+        assertNull(DependencyLockfile.read(bundles));
+        jar.delete();
+        assertNull(DependencyLockfile.read(bundles));
+    }
+}
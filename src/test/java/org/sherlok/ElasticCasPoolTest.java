@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CasHeapSize;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.component.NoOpAnnotator;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Test;
+
+public class ElasticCasPoolTest {
+
+    private static AnalysisEngine noOpEngine() throws Exception {
+        return AnalysisEngineFactory.createEngine(NoOpAnnotator.class);
+    }
+
+    @Test
+    public void testGrowAndTimeout() throws Exception {
+        ElasticCasPool pool = new ElasticCasPool(noOpEngine(), 1, 2,
+                Long.MAX_VALUE);
+        assertEquals(1, pool.getSize());
+
+        CAS cas1 = pool.getCas(10);
+        CAS cas2 = pool.getCas(10);
+        assertNotNull(cas2);
+        assertEquals("grew on demand", 2, pool.getSize());
+        assertNull("max size reached", pool.getCas(10));
+
+        cas1.setDocumentText("some text");
+        pool.releaseCas(cas1);
+        CAS cas3 = pool.getCas(10);
+        assertSame("reused", cas1, cas3);
+        assertNull("was reset", cas3.getDocumentText());
+        pool.releaseCas(cas2);
+        pool.releaseCas(cas3);
+    }
+
+    @Test
+    public void testShrinkWithoutRequests() throws Exception {
+        ElasticCasPool pool = new ElasticCasPool(noOpEngine(), 0, 2,
+                Long.MAX_VALUE);
+        pool.releaseCas(pool.getCas(10));
+        assertEquals(1, pool.getSize());
+        pool.shrink(currentTimeMillis());
+        assertEquals("not idle for long", 1, pool.getSize());
+        pool.shrink(currentTimeMillis() + ElasticCasPool.IDLE_TIMEOUT_MS + 1);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void testSameTypeSystem() throws Exception {
+        ElasticCasPool pool = new ElasticCasPool(noOpEngine(), 1, 3,
+                Long.MAX_VALUE);
+        CAS cas1 = pool.getCas(10), cas2 = pool.getCas(10), cas3 = pool
+                .getCas(10);
+        assertSame(cas1.getTypeSystem(), cas2.getTypeSystem());
+        assertSame(cas1.getTypeSystem(), cas3.getTypeSystem());
+        pool.releaseCas(cas1);
+        pool.releaseCas(cas2);
+        pool.releaseCas(cas3);
+    }
+
+    /** Counts how many instances got destroyed */
+    public static class DestroyCounter extends JCasAnnotator_ImplBase {
+        static final AtomicInteger destroyed = new AtomicInteger();
+
+        @Override
+        public void process(JCas jCas) throws AnalysisEngineProcessException {
+        }
+
+        @Override
+        public void destroy() {
+            destroyed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        ElasticCasPool pool = new ElasticCasPool(
+                AnalysisEngineFactory.createEngine(DestroyCounter.class), 2,
+                2, Long.MAX_VALUE);
+        int before = DestroyCounter.destroyed.get();
+        pool.destroy();
+        assertEquals("destroyed its engine", before + 1,
+                DestroyCounter.destroyed.get());
+        assertEquals("discarded idle CASes", 0, pool.getSize());
+    }
+
+    @Test
+    public void testDiscardLargeCas() throws Exception {
+        CAS cas = noOpEngine().newCAS();
+        long heapBytes = CasHeapSize.getHeapCapacity(cas);
+        assertTrue(heapBytes > 0);
+
+        ElasticCasPool pool = new ElasticCasPool(noOpEngine(), 1, 2,
+                heapBytes);
+        CAS small = pool.getCas(10);
+        pool.releaseCas(small);
+        assertEquals(1, pool.getSize());
+
+        CAS large = pool.getCas(10);
+        for (int i = 0; i < 500000; i++) { // grow the heap
+            large.addFsToIndexes(large.createAnnotation(
+                    large.getAnnotationType(), i, i + 1));
+        }
+        pool.releaseCas(large);
+        assertEquals("discarded", 0, pool.getSize());
+        assertNotNull("recreated", pool.getCas(10));
+    }
+}
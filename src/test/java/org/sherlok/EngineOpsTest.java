@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sherlok.utils.Create.list;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.uima.fit.component.NoOpAnnotator;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.junit.Test;
+import org.sherlok.EngineOps.Descriptor;
+import org.sherlok.mappings.BundleDef;
+import org.sherlok.mappings.BundleDef.EngineDef;
+
+public class EngineOpsTest {
+
+    @Test
+    public void testDescriptorDependsOnTypes() throws Exception {
+        BundleDef bundle = (BundleDef) new BundleDef().setName("b")
+                .setVersion("1");
+        EngineDef engineDef = new EngineDef().setName("noop")
+                .setClassz(NoOpAnnotator.class.getName()).setBundle(bundle);
+        List<EngineDef> engineDefs = list(engineDef);
+
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType("org.test.Foo", "", "uima.tcas.Annotation");
+        Descriptor foo = EngineOps.generateXmlDescriptor(engineDef.getId(),
+                engineDefs, tsd);
+        assertTrue(foo.getFile().exists());
+        assertEquals(foo.fingerprint, EngineOps.generateXmlDescriptor(
+                engineDef.getId(), engineDefs, tsd).fingerprint);
+
+        // same engine, other types: must not reuse that descriptor
+        tsd.addType("org.test.Bar", "", "uima.tcas.Annotation");
+        Descriptor bar = EngineOps.generateXmlDescriptor(engineDef.getId(),
+                engineDefs, tsd);
+        assertEquals(foo.name, bar.name);
+        assertNotEquals(foo.fingerprint, bar.fingerprint);
+        // the descriptor named after the engine follows it
+        File named = new File(FileBased.ENGINE_CACHE_PATH + bar.name + ".xml");
+        assertArrayEquals(Files.readAllBytes(bar.getFile().toPath()),
+                Files.readAllBytes(named.toPath()));
+    }
+}
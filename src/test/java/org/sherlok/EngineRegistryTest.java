@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sherlok.utils.Create.map;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_component.AnalysisComponent;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
+import org.apache.uima.fit.component.NoOpAnnotator;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.junit.Test;
+import org.sherlok.EngineOps.Descriptor;
+
+public class EngineRegistryTest {
+
+    private static Descriptor writeDescriptor(String name, String fingerprint)
+            throws Exception {
+        return writeDescriptor(name, fingerprint, NoOpAnnotator.class);
+    }
+
+    private static Descriptor writeDescriptor(String name,
+            String fingerprint, Class<? extends AnalysisComponent> annotator)
+            throws Exception {
+        Descriptor descriptor = new Descriptor(name, fingerprint);
+        File xml = descriptor.getFile();
+        xml.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(xml)) {
+            AnalysisEngineFactory.createEngineDescription(annotator).toXML(
+                    fos);
+        }
+        return descriptor;
+    }
+
+    /** Takes until {@link #LOADED} to load */
+    public static class SlowAnnotator extends JCasAnnotator_ImplBase {
+        static final CountDownLatch LOADED = new CountDownLatch(1);
+
+        @Override
+        public void initialize(UimaContext context)
+                throws ResourceInitializationException {
+            super.initialize(context);
+            try {
+                LOADED.await();
+            } catch (InterruptedException e) {
+                throw new ResourceInitializationException(e);
+            }
+        }
+
+        @Override
+        public void process(JCas jCas) {
+        }
+    }
+
+    @Test
+    public void testShareAndRelease() throws Exception {
+        // two engine definitions, with the same class and parameters
+        String fingerprint = "test_" + System.nanoTime();
+        Descriptor a = writeDescriptor("noop_a", fingerprint);
+        Descriptor b = writeDescriptor("noop_b", fingerprint);
+
+        String acquired = EngineRegistry.acquire(a, 2,
+                BundleClassLoaders.BASE);
+        assertTrue(acquired.startsWith(fingerprint));
+        assertEquals(acquired,
+                EngineRegistry.acquire(b, 2, BundleClassLoaders.BASE));
+        assertEquals(2, EngineRegistry.getUsers(acquired));
+
+        Map<String, String> bound = map();
+        bound.put("noop_a", acquired);
+        bound.put("noop_b", acquired);
+        EngineRegistry.bind(bound);
+        try {
+            EngineRegistry.Loader loader = new EngineRegistry.Loader();
+            assertTrue(Arrays.asList(loader.getKnownEngines()).contains(
+                    "noop_b"));
+            AnalysisEngine engine = loader.loadEngine(
+                    FileBased.ENGINE_CACHE_PATH + "noop_a.xml", null);
+            assertSame(engine, loader.loadEngine("noop_b.xml", null));
+
+            EngineRegistry.release(acquired);
+            assertEquals(1, EngineRegistry.getUsers(acquired));
+            assertSame(engine, loader.loadEngine("noop_a.xml", null));
+
+            EngineRegistry.release(acquired);
+            assertEquals(0, EngineRegistry.getUsers(acquired));
+            try {
+                loader.loadEngine("noop_a.xml", null);
+                fail("released");
+            } catch (ResourceInitializationException e) { // expected
+            }
+        } finally {
+            EngineRegistry.unbind();
+        }
+    }
+
+    @Test
+    public void testInstancesNotShared() throws Exception {
+        // a pipeline with more replicas needs an engine with more instances
+        Descriptor descriptor = writeDescriptor("noop_d",
+                "test_" + System.nanoTime());
+        String one = EngineRegistry.acquire(descriptor, 1,
+                BundleClassLoaders.BASE);
+        String four = EngineRegistry.acquire(descriptor, 4,
+                BundleClassLoaders.BASE);
+        assertNotEquals(one, four);
+        assertEquals(1, EngineRegistry.getUsers(one));
+        assertEquals(1, EngineRegistry.getUsers(four));
+        EngineRegistry.release(one);
+        EngineRegistry.release(four);
+    }
+
+    @Test
+    public void testInstances() throws Exception {
+        // pipelines sharing the engine wait for one of its idle instances
+        Descriptor descriptor = writeDescriptor("noop_f",
+                "test_" + System.nanoTime());
+        String key = EngineRegistry.acquire(descriptor, 2,
+                BundleClassLoaders.BASE);
+        Semaphore instances = EngineRegistry.getInstances(key);
+        assertEquals(2, instances.availablePermits());
+        assertSame(instances, EngineRegistry.getInstances(EngineRegistry
+                .acquire(descriptor, 2, BundleClassLoaders.BASE)));
+        EngineRegistry.release(key);
+        EngineRegistry.release(key);
+        assertNull(EngineRegistry.getInstances(key));
+    }
+
+    @Test
+    public void testLoadOutsideLock() throws Exception {
+        final Descriptor slow = writeDescriptor("slow", "test_slow_"
+                + System.nanoTime(), SlowAnnotator.class);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<String> acquireSlow = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return EngineRegistry.acquire(slow, 1,
+                            BundleClassLoaders.BASE);
+                }
+            };
+            Future<String> first = executor.submit(acquireSlow);
+            Future<String> second = executor.submit(acquireSlow);
+            String key = slow.fingerprint + "@"
+                    + BundleClassLoaders.keyOf(BundleClassLoaders.BASE) + "#1";
+            while (EngineRegistry.getUsers(key) < 2) { // both are waiting
+                Thread.sleep(10);
+            }
+
+            // other engines load meanwhile
+            Descriptor other = writeDescriptor("noop_e",
+                    "test_" + System.nanoTime());
+            String acquired = EngineRegistry.acquire(other, 1,
+                    BundleClassLoaders.BASE);
+            EngineRegistry.release(acquired);
+            assertFalse(first.isDone());
+            assertFalse(second.isDone());
+
+            // both get the same engine, loaded once
+            SlowAnnotator.LOADED.countDown();
+            assertEquals(key, first.get(10, SECONDS));
+            assertEquals(key, second.get(10, SECONDS));
+            assertEquals(2, EngineRegistry.getUsers(key));
+            EngineRegistry.release(key);
+            EngineRegistry.release(key);
+        } finally {
+            SlowAnnotator.LOADED.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOnlyBoundEngines() throws Exception {
+        Descriptor descriptor = writeDescriptor("noop_c",
+                "test_" + System.nanoTime());
+        String acquired = EngineRegistry.acquire(descriptor, 1,
+                BundleClassLoaders.BASE);
+        try {
+            // another thread's pipeline: Ruta must not find this engine
+            EngineRegistry.Loader loader = new EngineRegistry.Loader();
+            assertEquals(0, loader.getKnownEngines().length);
+            try {
+                loader.loadEngine("noop_c.xml", null);
+                fail("not bound");
+            } catch (ResourceInitializationException e) { // expected
+            }
+        } finally {
+            EngineRegistry.release(acquired);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class JarIndexTest {
+
+    private static File jar(File dir, String name, String... entries)
+            throws Exception {
+        File jar = new File(dir, name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(
+                jar))) {
+            for (String entry : entries) {
+                zip.putNextEntry(new ZipEntry(entry));
+                zip.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    @Test
+    public void testClasspathDecisions() throws Exception {
+        File dir = Files.createTempDir();
+        File indexFile = new File(dir, "index.json");
+        File lib1 = jar(dir, "lib-1.0.jar", "org/test/A.class");
+        File lib2 = jar(dir, "lib-2.0.jar", "org/test/A.class");
+        File other = jar(dir, "other-1.0.jar", "org/test/B.class");
+        File models = jar(dir, "models-1.0.jar", "org/test/model.bin");
+
+        JarIndex index = new JarIndex(indexFile);
+        assertFalse(index.isOnClasspath(lib1));
+        index.addedToClasspath(lib1);
+        assertTrue(index.isOnClasspath(lib1));
+        assertTrue("another version, shadowed", index.isOnClasspath(lib2));
+        assertFalse("same package, another artifact",
+                index.isOnClasspath(other));
+        assertFalse(index.isOnClasspath(models));
+        index.addedToClasspath(models);
+        assertTrue(index.isOnClasspath(models));
+
+        // persisted; a new JVM starts with an empty classpath
+        index.save();
+        assertTrue(indexFile.exists());
+        index = new JarIndex(indexFile);
+        assertFalse(index.isOnClasspath(lib1));
+        index.addedToClasspath(lib2);
+        assertTrue(index.isOnClasspath(lib1));
+    }
+
+    @Test
+    public void testArtifactId() {
+        assertEquals("uimaj-core",
+                JarIndex.artifactId(new File("uimaj-core-2.7.0.jar")));
+        assertEquals("de.tudarmstadt.ukp.dkpro.core.api.segmentation-asl",
+                JarIndex.artifactId(new File(
+                        "de.tudarmstadt.ukp.dkpro.core.api.segmentation-asl-1.7.0.jar")));
+        assertEquals("noversion", JarIndex.artifactId(new File(
+                "noversion.jar")));
+    }
+}
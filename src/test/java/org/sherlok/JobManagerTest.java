@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.sherlok.JobManager.Job;
+import org.sherlok.JobManager.Stage;
+import org.sherlok.JobManager.Status;
+import org.sherlok.mappings.SherlokException;
+
+import com.google.common.io.Files;
+
+public class JobManagerTest {
+
+    @Test
+    public void testFailedJobAndExpiration() throws Exception {
+        File jobsDir = Files.createTempDir();
+        JobManager jobManager = new JobManager(new PipelineLoader(
+                new Controller().load()), 1, jobsDir);
+
+        Job job = jobManager.submit("nonexisting", null, "some text");
+        assertNotNull(jobManager.get(job.getId()));
+        for (int i = 0; i < 100 && job.getStatus() != Status.failed; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(Status.failed, job.getStatus());
+        assertEquals("no Pipeline with this id", job.getError().getMessage());
+        assertEquals(Status.failed, job.toJson().get("status"));
+        assertNull(job.getStage());
+        assertEquals("spooled text removed", 0, jobsDir.list().length);
+
+        jobManager.expire(Long.MAX_VALUE);
+        assertNotNull("not expired yet", jobManager.get(job.getId()));
+        Thread.sleep(5);
+        jobManager.expire(0);
+        assertNull("expired", jobManager.get(job.getId()));
+        assertEquals(0, jobsDir.list().length);
+    }
+
+    @Test
+    public void testSpooledUntilRun() throws Exception {
+        File jobsDir = Files.createTempDir();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        JobManager jobManager = new JobManager(new PipelineLoader(
+                new Controller().load()) {
+            @Override
+            public UimaPipeline resolvePipeline(String pipelineName,
+                    String version) throws SherlokException {
+                loading.countDown();
+                try {
+                    loaded.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.resolvePipeline(pipelineName, version);
+            }
+        }, 1, jobsDir);
+
+        Job running = jobManager.submit("nonexisting", null, "some text");
+        Job queued = jobManager.submit("nonexisting", null, "queued text");
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        assertEquals(Stage.loading, running.toJson().get("stage"));
+        assertNull(queued.getStage());
+        assertEquals(0, queued.toJson().get("queue_position"));
+        assertEquals("queued text", Files.toString(new File(jobsDir,
+                queued.getId() + ".txt"), UTF_8));
+
+        loaded.countDown();
+        for (int i = 0; i < 100 && queued.getStatus() != Status.failed; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(Status.failed, queued.getStatus());
+        assertEquals(0, jobsDir.list().length);
+    }
+
+    @Test
+    public void testResultFetchedOnce() throws Exception {
+        File jobsDir = Files.createTempDir();
+        JobManager jobManager = new JobManager(new PipelineLoader(
+                new Controller().load()), 1, jobsDir);
+        Job job = jobManager.submit("nonexisting", null, "some text");
+        for (int i = 0; i < 100 && job.getStatus() != Status.failed; i++) {
+            Thread.sleep(50);
+        }
+        Files.write("{}".getBytes(), new File(jobsDir, job.getId() + ".json"));
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        assertTrue(jobManager.writeResultAndRemove(job, first));
+        assertEquals("{}", first.toString());
+        // e.g. a concurrent request, that got the job before it was removed
+        assertFalse(jobManager.writeResultAndRemove(job,
+                new ByteArrayOutputStream()));
+        assertNull(jobManager.get(job.getId()));
+        assertEquals(0, jobsDir.list().length);
+    }
+}
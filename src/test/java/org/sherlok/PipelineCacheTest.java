@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sherlok.utils.Create.list;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.cas.CAS;
+import org.junit.Test;
+import org.sherlok.mappings.BundleDef.EngineDef;
+import org.sherlok.mappings.PipelineDef;
+import org.sherlok.mappings.ServerBusyException;
+
+public class PipelineCacheTest {
+
+    private static UimaPipeline pipeline(String name, boolean pinned)
+            throws Exception {
+        PipelineDef pd = (PipelineDef) new PipelineDef()
+                .setPinned(pinned)
+                .setScriptLines(list("DECLARE Dog;", "\"dog\" -> Dog;"))
+                .setName(name).setVersion("1");
+        return new UimaPipeline(pd, list(new EngineDef[0]));
+    }
+
+    private static void assertClosed(UimaPipeline pipeline) throws Exception {
+        try {
+            pipeline.annotate("dog");
+            fail("should be closed");
+        } catch (ServerBusyException e) { // expected
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        PipelineCache cache = new PipelineCache(100, 0);
+        UimaPipeline a = pipeline("a", false), b = pipeline("b", false), c = pipeline(
+                "c", false);
+        cache.put("a:1", a, 40);
+        cache.put("b:1", b, 40);
+        assertSame(a, cache.get("a:1")); // b is now the least recently used
+        cache.put("c:1", c, 40);
+
+        assertNull(cache.get("b:1"));
+        assertClosed(b);
+        assertNotNull(cache.get("a:1"));
+        assertNotNull(cache.get("c:1"));
+        assertEquals(80, cache.getBytes());
+        assertEquals(2, cache.getStats().size());
+        assertTrue(a.annotate("dog").contains("Dog"));
+
+        cache.clear();
+        assertEquals(0, cache.getBytes());
+        assertClosed(a);
+    }
+
+    @Test
+    public void testEstimatedSize() throws Exception {
+        UimaPipeline a = pipeline("a", false);
+        assertTrue(a.getBytes() > 0);
+        assertEquals(0, a.getSharedEngineBytes());
+
+        PipelineCache cache = new PipelineCache(Long.MAX_VALUE, 0);
+        cache.put("a:1", a, a.getBytes());
+        assertEquals(a.getBytes(), cache.getBytes());
+        assertEquals(a.getBytes(), cache.getStats().get(0).get("size_bytes"));
+        cache.clear();
+    }
+
+    @Test
+    public void testPinned() throws Exception {
+        PipelineCache cache = new PipelineCache(100, 0);
+        cache.put("a:1", pipeline("a", true), 80);
+        cache.put("b:1", pipeline("b", false), 80); // over budget, kept anyway
+        assertNotNull(cache.get("a:1"));
+        assertNotNull(cache.get("b:1"));
+        cache.put("c:1", pipeline("c", false), 10);
+        assertNotNull(cache.get("a:1"));
+        assertNull(cache.get("b:1"));
+        // in access order
+        assertEquals("a:1", cache.getStats().get(1).get("id"));
+        assertEquals(true, cache.getStats().get(1).get("pinned"));
+    }
+
+    @Test
+    public void testEvictIdle() throws Exception {
+        PipelineCache cache = new PipelineCache(100, 50);
+        UimaPipeline a = pipeline("a", false);
+        cache.put("a:1", a, 10);
+        cache.put("b:1", pipeline("b", true), 10);
+        Thread.sleep(100);
+        cache.evictIdle();
+        assertNull(cache.get("a:1"));
+        assertClosed(a);
+        assertNotNull("pinned", cache.get("b:1"));
+    }
+
+    @Test
+    public void testCloseWhileAnnotating() throws Exception {
+        final UimaPipeline a = pipeline("a", false);
+        a.annotate(new UimaPipeline.Annotate() {
+            @Override
+            public Object annotate(CAS cas, AnalysisEngine[] aes)
+                    throws org.apache.uima.analysis_engine.AnalysisEngineProcessException {
+                a.close(); // engines are only destroyed once done
+                cas.setDocumentText("a dog");
+                for (AnalysisEngine ae : aes) {
+                    ae.process(cas);
+                }
+                return null;
+            }
+        });
+        assertClosed(a);
+    }
+
+    @Test(timeout = 10000)
+    public void testGetWhileClosing() throws Exception {
+        final CountDownLatch closing = new CountDownLatch(1), done = new CountDownLatch(
+                1);
+        PipelineDef pd = (PipelineDef) new PipelineDef()
+                .setScriptLines(list("DECLARE Dog;")).setName("slow")
+                .setVersion("1");
+        UimaPipeline slow = new UimaPipeline(pd, list(new EngineDef[0])) {
+            @Override
+            public void close() {
+                closing.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.close();
+            }
+        };
+        final PipelineCache cache = new PipelineCache(100, 0);
+        UimaPipeline b = pipeline("b", false);
+        cache.put("slow:1", slow, 10);
+        cache.put("b:1", b, 10);
+
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                cache.remove("slow:1");
+            }
+        };
+        remover.start();
+        closing.await();
+        // not blocked by the pipeline being closed
+        assertSame(b, cache.get("b:1"));
+        cache.put("c:1", pipeline("c", false), 10);
+        assertEquals(20, cache.getBytes());
+        done.countDown();
+        remover.join();
+        cache.clear();
+    }
+}
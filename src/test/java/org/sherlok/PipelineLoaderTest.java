@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.sherlok.mappings.BundleDef.EngineDef;
+import org.sherlok.mappings.PipelineDef;
+import org.sherlok.mappings.PipelineDef.PipelineTest;
+import org.sherlok.mappings.ServerBusyException;
+import org.sherlok.mappings.SherlokException;
+
+public class PipelineLoaderTest {
+
+    /** Two pure Ruta pipelines, 'slow:1' blocks while loading */
+    private static class BlockingLoader extends PipelineLoader {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final AtomicInteger slowLoads = new AtomicInteger();
+
+        BlockingLoader() {
+            super(new Controller() {
+                @Override
+                String getLatestPipelineVersion(String pipelineName) {
+                    return "1";
+                }
+
+                @Override
+                PipelineDef getPipelineDef(String pipelineId) {
+                    return (PipelineDef) new PipelineDef()
+                            .setScriptLines(
+                                    list("DECLARE Dog;", "\"dog\" -> Dog;"))
+                            .setName(pipelineId.split(":")[0])
+                            .setVersion("1");
+                }
+            });
+        }
+
+        @Override
+        UimaPipeline load(PipelineDef pipelineDef) throws SherlokException {
+            try {
+                if (pipelineDef.getName().equals("slow")) {
+                    slowLoads.incrementAndGet();
+                    unblock.await();
+                }
+                return new UimaPipeline(pipelineDef, list(new EngineDef[0]));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentLoads() throws Exception {
+        final BlockingLoader loader = new BlockingLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<UimaPipeline>> slow = list();
+        for (int i = 0; i < 4; i++) {
+            slow.add(executor.submit(new Callable<UimaPipeline>() {
+                @Override
+                public UimaPipeline call() throws Exception {
+                    return loader.resolvePipeline("slow", "1");
+                }
+            }));
+        }
+
+        // not blocked by 'slow' loading
+        UimaPipeline fast = loader.resolvePipeline("fast", null);
+        assertSame(fast, loader.resolvePipeline("fast", "1"));
+
+        loader.unblock.countDown();
+        UimaPipeline first = slow.get(0).get(10, SECONDS);
+        for (Future<UimaPipeline> f : slow) {
+            assertSame(first, f.get(10, SECONDS));
+        }
+        assertEquals("loaded once", 1, loader.slowLoads.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        final PipelineDef dog = (PipelineDef) new PipelineDef()
+                .setLoadOnStartup(true)
+                .setScriptLines(list("DECLARE Dog;", "\"dog\" -> Dog;"))
+                .setName("dog").setVersion("1");
+        dog.getTests().add(new PipelineTest().setInput("a dog"));
+        final PipelineDef other = (PipelineDef) new PipelineDef()
+                .setScriptLines(list("DECLARE Cat;")).setName("other")
+                .setVersion("1");
+        final AtomicInteger loads = new AtomicInteger();
+        PipelineLoader loader = new PipelineLoader(new Controller() {
+            @Override
+            Collection<PipelineDef> listPipelines() {
+                return list(dog, other);
+            }
+
+            @Override
+            PipelineDef getPipelineDef(String pipelineId) {
+                return pipelineId.equals(dog.getId()) ? dog : other;
+            }
+        }) {
+            @Override
+            UimaPipeline load(PipelineDef pipelineDef) throws SherlokException {
+                loads.incrementAndGet();
+                try {
+                    return new UimaPipeline(pipelineDef, list(new EngineDef[0]));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        assertEquals(list("dog:1"), loader.preload());
+        assertEquals(1, loads.get());
+        loader.resolvePipeline("dog", "1");
+        assertEquals("cached", 1, loads.get());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        final Map<String, PipelineDef> defs = map();
+        defs.put("animal:1", (PipelineDef) new PipelineDef()
+                .setScriptLines(list("DECLARE Dog;", "\"dog\" -> Dog;"))
+                .setName("animal").setVersion("1"));
+        final CountDownLatch unblock = new CountDownLatch(1);
+        PipelineLoader loader = new PipelineLoader(new Controller() {
+            @Override
+            PipelineDef getPipelineDef(String pipelineId) {
+                return defs.get(pipelineId);
+            }
+        }) {
+            @Override
+            UimaPipeline load(PipelineDef pipelineDef) throws SherlokException {
+                try {
+                    if (pipelineDef.getScriptLines().get(0).contains("Cat")) {
+                        unblock.await();
+                    }
+                    return new UimaPipeline(pipelineDef, list(new EngineDef[0]));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        UimaPipeline dog = loader.resolvePipeline("animal", "1");
+
+        // update the pipeline, then reload it
+        defs.get("animal:1").setScriptLines(
+                list("DECLARE Cat;", "\"cat\" -> Cat;"));
+        loader.reload("animal:1");
+        assertSame("still serving", dog, loader.resolvePipeline("animal", "1"));
+        assertTrue(dog.annotate("dog").contains("Dog"));
+
+        unblock.countDown();
+        UimaPipeline cat = dog;
+        for (int i = 0; i < 100 && cat == dog; i++) {
+            Thread.sleep(50);
+            cat = loader.resolvePipeline("animal", "1");
+        }
+        assertTrue("swapped", cat != dog);
+        assertTrue(cat.annotate("cat").contains("Cat"));
+        try {
+            dog.annotate("dog");
+            fail("previous pipeline should be closed");
+        } catch (ServerBusyException e) { // expected
+        }
+    }
+
+    @Test(expected = SherlokException.class)
+    public void testMissingPipeline() throws Exception {
+        new PipelineLoader(new Controller().load()).resolvePipeline("missing",
+                "1");
+    }
+}
@@ -20,6 +20,7 @@ import static org.sherlok.utils.Create.list;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.uima.resource.ResourceInitializationException;
 import org.junit.Ignore;
@@ -44,6 +45,30 @@ public class RutaTests {
         new UimaPipeline(pd, new ArrayList<EngineDef>());
     }
 
+    @Test
+    public void testOtherThreadsOutputNotCaptured() throws Exception {
+        // another thread printing errors while the pipeline gets loaded
+        final AtomicBoolean loading = new AtomicBoolean(true);
+        Thread printer = new Thread() {
+            @Override
+            public void run() {
+                while (loading.get()) {
+                    System.err.println("unrelated error");
+                }
+            }
+        };
+        printer.start();
+        try {
+            PipelineDef pd = (PipelineDef) new PipelineDef()//
+                    .setScriptLines(list("DECLARE Ok;"))//
+                    .setName("testOtherThreadsOutputNotCaptured");
+            new UimaPipeline(pd, new ArrayList<EngineDef>()).close();
+        } finally {
+            loading.set(false);
+            printer.join();
+        }
+    }
+
     @Test(expected = ResourceInitializationException.class)
     public void testValidateRutaScriptMissingColumn() throws Exception {
 
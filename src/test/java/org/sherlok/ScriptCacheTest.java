@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class ScriptCacheTest {
+
+    @Test
+    public void testDeclaredTypes() throws Exception {
+        String script = "PACKAGE org.test;\nDECLARE Foo, Bar;\n"
+                + "DECLARE Foo Baz (STRING label);\n// " + System.nanoTime();
+        assertNull(ScriptCache.getDeclaredTypes(script));
+
+        ScriptCache.putDeclaredTypes(script,
+                UimaPipeline.parseDeclaredTypes(script, "org.test"));
+        TypeSystemDescription cached = ScriptCache.getDeclaredTypes(script);
+        assertEquals(3, cached.getTypes().length);
+        TypeDescription baz = cached.getType("org.test.Baz");
+        assertEquals("org.test.Foo", baz.getSupertypeName());
+        assertEquals("label", baz.getFeatures()[0].getName());
+        assertEquals("uima.cas.String",
+                baz.getFeatures()[0].getRangeTypeName());
+    }
+
+    @Test
+    public void testUpToDate() throws Exception {
+        File generated = new File(Files.createTempDir(), "gen_"
+                + System.nanoTime() + ".xml");
+        assertFalse(ScriptCache.isUpToDate(generated, "a"));
+
+        Files.write("generated from a".getBytes(), generated);
+        assertFalse("no hash yet", ScriptCache.isUpToDate(generated, "a"));
+        ScriptCache.setUpToDate(generated, "a");
+        assertTrue(ScriptCache.isUpToDate(generated, "a"));
+        assertFalse(ScriptCache.isUpToDate(generated, "b"));
+
+        generated.delete();
+        assertFalse(ScriptCache.isUpToDate(generated, "a"));
+    }
+}
@@ -45,6 +45,28 @@ public class SherlokServerArgsTest {
         assertEquals("abcd", arg.address);
     }
 
+    @Test
+    public void testReplicas() {
+
+        CliArguments arg = new CliArguments();
+        assertEquals(1, arg.replicas);
+        String[] args = { "-replicas", "4" };
+        new JCommander(arg, args);
+
+        assertEquals(4, arg.replicas);
+    }
+
+    @Test
+    public void testTrimTypes() {
+
+        CliArguments arg = new CliArguments();
+        assertEquals(false, arg.trimTypes);
+        String[] args = { "-trim-types" };
+        new JCommander(arg, args);
+
+        assertEquals(true, arg.trimTypes);
+    }
+
     @Test(expected = ParameterException.class)
     public void testFail() {
         String[] args = { "-port", "woops" };
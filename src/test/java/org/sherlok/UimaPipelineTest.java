@@ -16,24 +16,49 @@
 package org.sherlok;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.sherlok.utils.Create.list;
 import static org.sherlok.utils.Create.map;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.component.JCasAnnotator_ImplBase;
 import org.apache.uima.fit.factory.JCasFactory;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
 import org.apache.uima.ruta.engine.Ruta;
 import org.apache.uima.ruta.engine.RutaEngine;
 import org.apache.uima.ruta.ontologies.OntoActionExtension;
 import org.apache.uima.ruta.type.DebugScriptApply;
+import org.apache.uima.util.CasCreationUtils;
 import org.junit.Test;
+import org.sherlok.mappings.BinaryCasDecoder;
+import org.sherlok.mappings.BundleDef;
+import org.sherlok.mappings.BundleDef.EngineDef;
 import org.sherlok.mappings.JsonAnnotation;
 import org.sherlok.mappings.PipelineDef;
 import org.sherlok.mappings.PipelineDef.PipelineOutput;
@@ -166,4 +191,195 @@ public class UimaPipelineTest {
         assertNull("should have no more TagDescription",
                 result.get("TagDescription"));
     }
+
+    @Test
+    public void testBinaryOutput() throws Exception {
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType("org.test.Bar", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.test.Other", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.test.Foo", "", CAS.TYPE_NAME_ANNOTATION).addFeature(
+                "bar", "", "org.test.Bar");
+        CAS cas = CasCreationUtils.createCas(tsd, null, null);
+        cas.setDocumentText("foo bar other");
+        TypeSystem ts = cas.getTypeSystem();
+        Type foo = ts.getType("org.test.Foo");
+        AnnotationFS bar = cas.createAnnotation(ts.getType("org.test.Bar"), 4,
+                7);
+        cas.addFsToIndexes(bar);
+        AnnotationFS fooA = cas.createAnnotation(foo, 0, 3);
+        fooA.setFeatureValue(foo.getFeatureByBaseName("bar"), bar);
+        cas.addFsToIndexes(fooA);
+        cas.addFsToIndexes(cas.createAnnotation(ts.getType("org.test.Other"),
+                8, 13));
+
+        TypeSystemDescription filteredTsd = UimaPipeline
+                .filterTypeSystemDescription(list("org.test.Foo"),
+                        new ArrayList<String>(), ts);
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        filteredTsd.toXML(xml);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UimaPipeline.serializeBinary(cas, CasCreationUtils.createCas(
+                filteredTsd, null, null).getTypeSystem(),
+                BinaryCasDecoder.hash(xml.toByteArray()), out);
+
+        BinaryCasDecoder decoder = new BinaryCasDecoder();
+        try {
+            decoder.decode(out.toByteArray());
+            fail("type system not added yet");
+        } catch (IOException e) {
+            // expected
+        }
+        decoder.addTypeSystem(xml.toByteArray());
+        CAS decoded = decoder.decode(out.toByteArray());
+        assertEquals("foo bar other", decoded.getDocumentText());
+        Map<String, List<AnnotationFS>> annots = BinaryCasDecoder
+                .getAnnotations(decoded);
+        assertEquals(1, annots.get("Foo").size());
+        assertEquals("foo", annots.get("Foo").get(0).getCoveredText());
+        assertNull("Bar is not included", annots.get("Bar"));
+        assertNull("Other is not included", annots.get("Other"));
+        assertNull("Bar is not included, so neither is Foo.bar", decoded
+                .getTypeSystem().getType("org.test.Foo")
+                .getFeatureByBaseName("bar"));
+    }
+
+    @Test
+    public void testMergeChunks() throws Exception {
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType("org.test.Bar", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.test.Foo", "", CAS.TYPE_NAME_ANNOTATION).addFeature(
+                "bar", "", "org.test.Bar");
+        String text = "foo bar. foo bar.";
+        CAS target = CasCreationUtils.createCas(tsd, null, null);
+        target.setDocumentText(text);
+
+        for (int offset : new int[] { 0, 9 }) {
+            CAS chunk = CasCreationUtils.createCas(tsd, null, null);
+            chunk.setDocumentText(text.substring(offset, offset + 8));
+            Type foo = chunk.getTypeSystem().getType("org.test.Foo");
+            AnnotationFS bar = chunk.createAnnotation(chunk.getTypeSystem()
+                    .getType("org.test.Bar"), 4, 7);
+            chunk.addFsToIndexes(bar);
+            AnnotationFS fooA = chunk.createAnnotation(foo, 0, 3);
+            fooA.setFeatureValue(foo.getFeatureByBaseName("bar"), bar);
+            chunk.addFsToIndexes(fooA);
+            UimaPipeline.mergeInto(chunk, target, offset);
+        }
+
+        Map<String, List<AnnotationFS>> annots = BinaryCasDecoder
+                .getAnnotations(target);
+        assertEquals(1, annots.get("DocumentAnnotation").size());
+        assertEquals(2, annots.get("Foo").size());
+        assertEquals(2, annots.get("Bar").size());
+        AnnotationFS secondFoo = annots.get("Foo").get(1);
+        assertEquals(9, secondFoo.getBegin());
+        assertEquals("foo", secondFoo.getCoveredText());
+        AnnotationFS secondBar = (AnnotationFS) secondFoo
+                .getFeatureValue(secondFoo.getType().getFeatureByBaseName(
+                        "bar"));
+        assertEquals("bar", secondBar.getCoveredText());
+        assertEquals(annots.get("Bar").get(1), secondBar);
+    }
+
+    @Test(timeout = 60000)
+    public void testChunksWithOneCas() throws Exception {
+        PipelineDef pd = (PipelineDef) new PipelineDef().setReplicas(1)
+                .setCasPoolMax(1).setChunkSize(100)
+                .setScriptLines(list("DECLARE Dog;", "\"dog\" -> Dog;"))
+                .setName("chunked").setVersion("1");
+        UimaPipeline pipeline = new UimaPipeline(pd, list(new EngineDef[0]));
+        try {
+            // the merged CAS must not take the only pooled CAS
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 350) {
+                text.append("a dog barks. ");
+            }
+            String json = pipeline.annotate(text.toString());
+            assertTrue(json.contains("Dog"));
+            assertTrue(pipeline.annotate("one more dog").contains("Dog"));
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /** Records the context classloaders it annotates with */
+    public static class ContextClassLoaderRecorder extends
+            JCasAnnotator_ImplBase {
+        static final Set<ClassLoader> recorded = Collections
+                .synchronizedSet(new HashSet<ClassLoader>());
+
+        @Override
+        public void process(JCas jCas) throws AnalysisEngineProcessException {
+            recorded.add(Thread.currentThread().getContextClassLoader());
+        }
+    }
+
+    @Test
+    public void testContextClassLoader() throws Exception {
+        BundleDef bundle = (BundleDef) new BundleDef().setName("b")
+                .setVersion("1");
+        EngineDef recorder = new EngineDef().setName("recorder")
+                .setClassz(ContextClassLoaderRecorder.class.getName())
+                .setBundle(bundle);
+        PipelineDef pd = (PipelineDef) new PipelineDef().setChunkSize(100)
+                .setScriptLines(list("ENGINE recorder:1;"))
+                .setName("recording").setVersion("1");
+        ClassLoader pipelineClassLoader = new URLClassLoader(new URL[0],
+                BundleClassLoaders.BASE);
+        UimaPipeline pipeline = new UimaPipeline(pd, list(recorder),
+                pipelineClassLoader);
+        ClassLoader before = Thread.currentThread().getContextClassLoader();
+        try {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 350) { // chunked, on other threads
+                text.append("a dog barks. ");
+            }
+            ContextClassLoaderRecorder.recorded.clear();
+            pipeline.annotate("a dog");
+            pipeline.annotate(text.toString());
+            pipeline.annotateBinary("a dog", new ByteArrayOutputStream());
+            assertEquals(Create.set(pipelineClassLoader),
+                    ContextClassLoaderRecorder.recorded);
+            assertSame("restored", before, Thread.currentThread()
+                    .getContextClassLoader());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testReloadTSD() throws Exception {
+        TypeSystemDescription scanned = UimaPipeline.reloadTSD();
+        int types = scanned.getTypes().length;
+        // pipelines add their types to a copy of the cached scan
+        scanned.addType("org.test.Added", "", CAS.TYPE_NAME_ANNOTATION);
+        TypeSystemDescription rescanned = UimaPipeline.reloadTSD();
+        assertNotSame(scanned, rescanned);
+        assertEquals(types, rescanned.getTypes().length);
+        assertNull(rescanned.getType("org.test.Added"));
+    }
+
+    @Test
+    public void testTrimTSD() throws Exception {
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType("org.test.Range", "", CAS.TYPE_NAME_TOP);
+        tsd.addType("org.test.Used", "", CAS.TYPE_NAME_ANNOTATION)
+                .addFeature("range", "", "org.test.Range");
+        tsd.addType("org.test.Sub", "", "org.test.Used");
+        tsd.addType("org.test.Super", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.test.Mentioned", "", "org.test.Super");
+        tsd.addType("org.test.Unused", "", CAS.TYPE_NAME_ANNOTATION);
+        tsd.addType("org.apache.uima.ruta.type.TokenSeed", "",
+                CAS.TYPE_NAME_ANNOTATION);
+
+        TypeSystemDescription trimmed = UimaPipeline.trimTSD(tsd,
+                Create.set("org.test.Used", "Mentioned"));
+        assertEquals(6, trimmed.getTypes().length);
+        assertNull(trimmed.getType("org.test.Unused"));
+        assertNotNull(trimmed.getType("org.test.Sub"));
+        assertNotNull(trimmed.getType("org.test.Range"));
+        assertNotNull(trimmed.getType("org.test.Super"));
+        assertNotNull(trimmed.getType("org.apache.uima.ruta.type.TokenSeed"));
+        CasCreationUtils.createCas(trimmed, null, null); // consistent
+    }
 }
@@ -21,9 +21,16 @@ import static com.jayway.restassured.http.ContentType.JSON;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.sherlok.SherlokServer.ANNOTATE;
+import static org.sherlok.SherlokServer.BATCH;
 import static org.sherlok.SherlokServer.DEFAULT_IP;
+import static org.sherlok.SherlokServer.JOBS;
+import static org.sherlok.SherlokServer.NDJSON;
+import static org.sherlok.SherlokServer.RESULT;
+import static org.sherlok.SherlokServer.STATUS_ACCEPTED;
 import static org.sherlok.SherlokServer.STATUS_INVALID;
+import static org.sherlok.SherlokServer.STATUS_MISSING;
 import static org.sherlok.SherlokServer.STATUS_OK;
+import static org.sherlok.SherlokServer.STREAM;
 import static org.sherlok.integration.PipelineLoaderIntegrationTest.TEST_TEXT;
 import static org.sherlok.mappings.SherlokResult.parse;
 
@@ -42,6 +49,7 @@ import org.sherlok.mappings.SherlokResult;
 import spark.StopServer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.jayway.restassured.path.json.JsonPath;
 
 /**
  * Integration tests for annotation REST API. This runs in a separate Spark
@@ -123,6 +131,93 @@ public class AnnotationApiIntegrationTest {
         assertEquals(3, parse(json).get("NamedEntity").size());
     }
 
+    @Test
+    public void test013_POSTBatchAnnotate() throws Exception {
+        String body = "{\"documents\": [" //
+                + "{\"id\":\"first\", \"text\":\"" + TEST_TEXT + "\"}, "
+                + "{\"id\":\"empty\", \"text\":\"\"}, "
+                + "{\"id\":\"second\", \"text\":\"" + TEST_TEXT + "\"}]}";
+        given().body(body).when()
+                .post(API_URL + "/opennlp.ners.en/" + BATCH)//
+                .then().log().everything()//
+                .statusCode(STATUS_INVALID); // empty text is rejected upfront
+
+        body = "{\"documents\": [" //
+                + "{\"id\":\"first\", \"text\":\"" + TEST_TEXT + "\"}, "
+                + "{\"id\":\"second\", \"text\":\"" + TEST_TEXT + "\"}]}";
+        JsonPath json = given().body(body).when()
+                .post(API_URL + "/opennlp.ners.en/" + BATCH)//
+                .then().log().everything()//
+                .statusCode(STATUS_OK)//
+                .contentType(JSON)//
+                .extract().jsonPath();
+        assertEquals(2, json.getList("results").size());
+        assertEquals("first", json.getString("results[0].id"));
+        assertEquals("second", json.getString("results[1].id"));
+        assertEquals(3, json.getList(
+                "results[1].result._views._InitialView.NamedEntity").size());
+    }
+
+    @Test
+    public void test014_POSTJob() throws Exception {
+        String jobsUrl = "http://localhost:" + TEST_PORT + "/" + JOBS;
+        String id = given().param("text", TEST_TEXT).when()
+                .post(jobsUrl + "/opennlp.ners.en")//
+                .then().log().everything()//
+                .statusCode(STATUS_ACCEPTED)//
+                .contentType(JSON)//
+                .extract().jsonPath().getString("id");
+
+        // wait for the job to finish
+        for (int i = 0; i < 600; i++) {
+            String status = when().get(jobsUrl + "/" + id).then()
+                    .statusCode(STATUS_OK).extract().jsonPath()
+                    .getString("status");
+            if (!status.equals("queued") && !status.equals("running")) {
+                assertEquals("done", status);
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        String json = when().get(jobsUrl + "/" + id + "/" + RESULT)//
+                .then().log().everything()//
+                .statusCode(STATUS_OK)//
+                .contentType(JSON)//
+                .extract().asString();
+        assertEquals(3, parse(json).get("NamedEntity").size());
+
+        // result was removed once fetched
+        when().get(jobsUrl + "/" + id).then().statusCode(STATUS_MISSING);
+    }
+
+    @Test
+    public void test015_POSTStreamAnnotate() throws Exception {
+        String body = "{\"id\":\"first\", \"text\":\"" + TEST_TEXT + "\"}\n"
+                + "not json\n" //
+                + "{\"id\":\"second\", \"text\":\"" + TEST_TEXT + "\"}\n";
+        String ndjson = given().body(body).when()
+                .post(API_URL + "/opennlp.ners.en/" + STREAM)//
+                .then().log().everything()//
+                .statusCode(STATUS_OK)//
+                .contentType(NDJSON)//
+                .extract().asString();
+        String[] lines = ndjson.trim().split("\n");
+        assertEquals(3, lines.length);
+        int annotated = 0;
+        for (String line : lines) {
+            JsonPath json = new JsonPath(line);
+            if (json.get("error") != null) {
+                assertEquals(2, json.getInt("id")); // line number
+            } else {
+                assertEquals(3, json.getList(
+                        "result._views._InitialView.NamedEntity").size());
+                annotated++;
+            }
+        }
+        assertEquals(2, annotated);
+    }
+
     @Test
     public void test012WrongPipeline() {
         given().param("text", TEST_TEXT) //
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sherlok.utils.Create.list;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class AetherResolverTest {
+
+    /** Sherlok's local repository, and ~/.m2 */
+    private File localRepo, m2;
+    private File previousM2;
+
+    @Before
+    public void before() {
+        localRepo = Files.createTempDir();
+        m2 = Files.createTempDir();
+        AetherResolver.setLocalRepoPath(localRepo.getPath());
+        previousM2 = AetherResolver.localRepo;
+        AetherResolver.localRepo = m2;
+    }
+
+    @After
+    public void after() throws Exception {
+        AetherResolver.setOffline(false);
+        AetherResolver.setLocalRepoPath(AetherResolver.LOCAL_REPO_PATH);
+        AetherResolver.localRepo = previousM2;
+        FileUtils.deleteDirectory(localRepo);
+        FileUtils.deleteDirectory(m2);
+    }
+
+    @Test
+    public void testParallelResolve() throws Exception {
+        // a local file-based repository, standing in for a remote one
+        File repo = Files.createTempDir();
+        try {
+            final List<Dependency> dependencies = list();
+            for (int i = 0; i < 10; i++) {
+                File jar = new File(repo, "org/test/a" + i + "/1/a" + i
+                        + "-1.jar");
+                jar.getParentFile().mkdirs();
+                Files.write(("jar " + i).getBytes(), jar);
+                dependencies.add(new Dependency(new DefaultArtifact(
+                        "org.test:a" + i + ":1"), ""));
+            }
+            final List<RemoteRepository> repos = list(new RemoteRepository.Builder(
+                    "test", "default", repo.toURI().toURL().toString())
+                    .build());
+
+            // two pipelines loading concurrently
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            List<Future<List<Artifact>>> loads = list();
+            for (int i = 0; i < 2; i++) {
+                loads.add(executor.submit(new Callable<List<Artifact>>() {
+                    @Override
+                    public List<Artifact> call() throws Exception {
+                        return AetherResolver.resolve(dependencies, repos);
+                    }
+                }));
+            }
+            for (Future<List<Artifact>> load : loads) {
+                List<Artifact> artifacts = load.get();
+                assertEquals(10, artifacts.size());
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("same order", "a" + i, artifacts.get(i)
+                            .getArtifactId());
+                    File jar = artifacts.get(i).getFile();
+                    assertTrue(jar.getCanonicalPath().startsWith(
+                            localRepo.getCanonicalPath()));
+                    assertEquals("jar " + i, Files.toString(jar, UTF_8));
+                }
+            }
+            executor.shutdown();
+
+            // also copied to ~/.m2
+            assertEquals("jar 3", Files.toString(new File(m2,
+                    "org/test/a3/1/a3-1.jar"), UTF_8));
+        } finally {
+            FileUtils.deleteDirectory(repo);
+        }
+    }
+
+    @Test
+    public void testOffline() throws Exception {
+        // ~/.m2, with one artifact
+        File jar = new File(m2, "org/test/a/1/a-1.jar");
+        jar.getParentFile().mkdirs();
+        Files.write("jar".getBytes(), jar);
+
+        AetherResolver.setOffline(true);
+        assertTrue(AetherResolver.getSession().isOffline());
+        List<RemoteRepository> repos = AetherResolver.newRepositories(
+                AetherResolver.getRepositorySystem(),
+                AetherResolver.getSession(),
+                Create.map("remote", "http://localhost:1/repo"));
+        assertEquals("only ~/.m2", 1, repos.size());
+        assertEquals("local_default", repos.get(0).getId());
+
+        List<Artifact> artifacts = AetherResolver.resolve(
+                list(new Dependency(new DefaultArtifact("org.test:a:1"), "")),
+                repos);
+        assertEquals("jar", Files.toString(artifacts.get(0).getFile(), UTF_8));
+        try {
+            AetherResolver.resolve(list(new Dependency(new DefaultArtifact(
+                    "org.test:missing:1"), "")), repos);
+            fail("not available offline");
+        } catch (ArtifactResolutionException e) { // expected
+        }
+    }
+}
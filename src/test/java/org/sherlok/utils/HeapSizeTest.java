@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sherlok.utils.Create.list;
+import static org.sherlok.utils.Create.map;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HeapSizeTest {
+
+    static class Model {
+        private final byte[] weights;
+        private Model shared;
+
+        Model(int size) {
+            this.weights = new byte[size];
+        }
+    }
+
+    @Test
+    public void testArrays() {
+        long bytes = HeapSize.retainedBytes(new byte[1000 * 1000]);
+        assertTrue(bytes >= 1000 * 1000 && bytes < 1000 * 1000 + 32);
+        assertTrue(HeapSize.retainedBytes(new long[1000]) >= 8000);
+    }
+
+    @Test
+    public void testCountedOnce() {
+        Model a = new Model(1000 * 1000);
+        long alone = HeapSize.retainedBytes(a);
+        a.shared = a; // cycle
+        assertEquals(alone, HeapSize.retainedBytes(a));
+
+        Model b = new Model(1000);
+        b.shared = a;
+        long both = HeapSize.retainedBytes(b);
+        assertTrue(both > alone);
+        assertTrue(both < alone + 2000);
+    }
+
+    @Test
+    public void testExcluded() {
+        Model a = new Model(1000 * 1000);
+        Model b = new Model(1000);
+        b.shared = a;
+        assertTrue(HeapSize.retainedBytes(b, a) < 2000);
+        assertTrue(HeapSize.retainedBytes(b) > 1000 * 1000);
+    }
+
+    @Test
+    public void testCollections() {
+        List<Object> models = list();
+        Map<String, Object> byName = map();
+        for (int i = 0; i < 10; i++) {
+            models.add(new byte[100 * 1000]);
+            byName.put("model" + i, new Model(100 * 1000));
+        }
+        assertTrue(HeapSize.retainedBytes(models) > 1000 * 1000);
+        assertTrue(HeapSize.retainedBytes(byName) > 1000 * 1000);
+    }
+
+    @Test
+    public void testClassesNotFollowed() {
+        // would else count all classes of its classloader
+        assertTrue(HeapSize.retainedBytes(list(HeapSizeTest.class,
+                getClass().getClassLoader())) < 1000);
+    }
+}
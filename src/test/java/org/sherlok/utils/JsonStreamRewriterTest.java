@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.sherlok.utils.Create.map;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonStreamRewriterTest {
+
+    @Test
+    public void testAppend() throws Exception {
+        StringWriter sw = new StringWriter();
+        JsonStreamRewriter w = new JsonStreamRewriter(sw);
+        w.write("{\"a\" : {\"b\":1}, \"old\" : {\"old\":3} }\n");
+        w.finish(map("_stats", (Object) map("t", 1)));
+        assertEquals(
+                "{\"a\" : {\"b\":1}, \"old\" : {\"old\":3} ,\"_stats\":{\"t\":1}}",
+                sw.toString());
+    }
+
+    @Test
+    public void testEmptyObject() throws Exception {
+        StringWriter sw = new StringWriter();
+        JsonStreamRewriter w = new JsonStreamRewriter(sw);
+        w.write("{ }");
+        Map<String, Object> extraFields = new LinkedHashMap<String, Object>();
+        extraFields.put("_stats", 1);
+        extraFields.put("_more", 2);
+        w.finish(extraFields);
+        assertEquals("{ \"_stats\":1,\"_more\":2}", sw.toString());
+    }
+
+    @Test
+    public void testSplitWrites() throws Exception {
+        StringWriter sw = new StringWriter();
+        JsonStreamRewriter w = new JsonStreamRewriter(sw);
+        for (char c : "{\"a\":{} }".toCharArray()) {
+            w.write(c);
+        }
+        w.finish(null);
+        assertEquals("{\"a\":{} }", sw.toString());
+    }
+
+    @Test
+    public void testNotAnObject() throws Exception {
+        StringWriter sw = new StringWriter();
+        JsonStreamRewriter w = new JsonStreamRewriter(sw);
+        w.write("[1, 2]");
+        w.finish(map("_stats", (Object) 1));
+        assertEquals("[1, 2]", sw.toString());
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2014-2015 Renaud Richardet
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sherlok.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.sherlok.utils.Create.list;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TextChunkerTest {
+
+    @Test
+    public void testSmallText() {
+        assertEquals(list(5), TextChunker.split("short", 10));
+    }
+
+    @Test
+    public void testParagraphsFirst() {
+        String text = "First para. Second sentence.\n\nSecond para.";
+        List<Integer> ends = TextChunker.split(text, 35);
+        assertEquals(list(30, text.length()), ends);
+        assertEquals("Second para.", text.substring(ends.get(0)));
+    }
+
+    @Test
+    public void testSentences() {
+        String text = "One sentence. Another one. And a third";
+        List<Integer> ends = TextChunker.split(text, 30);
+        assertEquals("And a third", text.substring(ends.get(0)));
+    }
+
+    @Test
+    public void testHardCut() {
+        List<Integer> ends = TextChunker.split("abcdefghij", 4);
+        assertEquals(list(4, 8, 10), ends);
+    }
+}